@@ -2,9 +2,20 @@ package sdle.client;
 
 import sdle.client.states.LoginState;
 import sdle.client.states.State;
+import sdle.client.utils.ConsistencyLevels;
+import sdle.client.utils.SmartClient;
 
 public class Client {
     public static void main(String[] args) {
+        for (String arg : args) {
+            if (arg.equals("smart")) {
+                // in smart mode the client routes getList and updateList to the servers itself
+                SmartClient.enable();
+            } else if (!ConsistencyLevels.parse(arg)) {
+                System.out.println("Usage: java -jar build/libs/client.jar [smart] [n=<N>] [r=<R>] [w=<W>]");
+                return;
+            }
+        }
 
         State state = new LoginState();
 
@@ -1,5 +1,6 @@
 package sdle.client.states;
 
+import sdle.client.utils.ListSubscriber;
 import sdle.client.utils.Utils;
 
 import java.io.IOException;
@@ -12,14 +13,28 @@ import java.util.List;
 import java.util.Scanner;
 
 public class ListProductsState implements State {
+    // updates are pushed by the servers, the list is still synced this often in case one was missed
+    private static final long RESYNC_INTERVAL = 30000;
+
+    // how long each pass waits for an update before it checks the keyboard again
+    private static final long POLL_INTERVAL = 100;
+
     private final Scanner scanner = new Scanner(System.in);
 
     private final String user;
     private String listUUID;
 
+    // false when the list is shown again because an update from the servers was merged into it
+    private final boolean sync;
+
     public ListProductsState(String user, String listUUID) {
+        this(user, listUUID, true);
+    }
+
+    public ListProductsState(String user, String listUUID, boolean sync) {
         this.user = user;
         this.listUUID = listUUID;
+        this.sync = sync;
     }
 
     @Override
@@ -42,11 +57,12 @@ public class ListProductsState implements State {
             listUUID = getListUUID(listName);
         }
 
-        Utils.updateShoppingListInServer(user,listUUID);
+        ListSubscriber.subscribe(listUUID);
 
-        boolean updated = false;
+        // push the local changes and get the merged list back in one request
+        boolean updated = !sync;
 
-        if(Utils.updateListFromServer(user,listUUID)){
+        if(sync && Utils.syncListWithServer(user,listUUID)){
             updated = true;
         }
 
@@ -55,7 +71,10 @@ public class ListProductsState implements State {
 
         Utils.clearConsole();
 
-        if(updated){
+        if(!sync){
+            System.out.println("Shopping list changed by another user.");
+        }
+        else if(updated){
             System.out.println("Shopping list updated from server.");
         }
         else{
@@ -72,9 +91,12 @@ public class ListProductsState implements State {
             long currentTime = System.currentTimeMillis();
             long elapsedTime = currentTime - lastUpdateTime;
 
-            // Check if one second has elapsed
-            if (elapsedTime >= 2000) { // 1000 milliseconds = 1 second
+            // Show the list again when another user changed it
+            if (ListSubscriber.receiveUpdates(user, listUUID, POLL_INTERVAL)) {
+                return new ListProductsState(user,listUUID,false);
+            }
 
+            if (elapsedTime >= RESYNC_INTERVAL) {
                 return new ListProductsState(user,listUUID);
             }
 
@@ -100,10 +122,12 @@ public class ListProductsState implements State {
                         }
                         case "4" -> {
                             Utils.clearConsole();
+                            ListSubscriber.unsubscribe(listUUID);
                             return new DeleteListState(user,listUUID);
                         }
                         case "q" -> {
                             Utils.clearConsole();
+                            ListSubscriber.unsubscribe(listUUID);
                             // Transition back to the menu state
                             return new MenuState(user);
                         }
@@ -20,6 +20,9 @@ public class ListShoppingListsState implements State {
     @Override
     public State run() {
 
+        // Bring every shopping list up to date with the server in one go
+        Utils.syncListsWithServer(user);
+
         // Display all shopping lists from the database
         displayShoppingLists();
 
@@ -0,0 +1,121 @@
+package sdle.client.utils;
+
+import org.zeromq.SocketType;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+
+import java.util.List;
+
+// Keeps the client's connections to the routers: one context for the whole client and one socket per router, kept
+// open between requests. Requests go to the router that answered last, and a router that does not answer in time
+// gets a fresh socket and is left alone for a while, twice as long after every failure, while the others are tried.
+public class ConnectionManager {
+
+    private static final String ROUTER_ADDRESS = "tcp://127.0.0.1:";
+
+    private static final List<Integer> ROUTER_PORTS = List.of(6001, 6002, 6003);
+
+    // a router answers within a server timeout even when the servers do not
+    private static final int ROUTER_TIMEOUT = 3000;
+
+    // a new socket first says hello, so a router that is down is passed over quickly instead of after a request
+    // timeout, except by the last router tried, which may just be slow
+    private static final int HELLO_TIMEOUT = 1000;
+
+    private static final int BACKOFF_MIN = 100;
+
+    private static final int BACKOFF_MAX = 5000;
+
+    private static ZContext context;
+
+    private static final ZMQ.Socket[] sockets = new ZMQ.Socket[ROUTER_PORTS.size()];
+
+    // when each router may be tried again, and how long it waits after its next failure
+    private static final long[] retryAt = new long[ROUTER_PORTS.size()];
+
+    private static final int[] backoff = new int[ROUTER_PORTS.size()];
+
+    // the router that answered last
+    private static int current = 0;
+
+    // The context shared by every socket of the client, closed when the client exits
+    public static synchronized ZContext getContext() {
+        if (context == null) {
+            context = new ZContext();
+            Runtime.getRuntime().addShutdownHook(new Thread(ConnectionManager::close));
+        }
+        return context;
+    }
+
+    // The router requests go to, as an index into the routers' ports
+    public static synchronized int currentRouter() {
+        return current;
+    }
+
+    // Sends a request to a router and returns its reply, or null if no router answered
+    public static synchronized String request(String request) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < ROUTER_PORTS.size(); i++) {
+            int router = (current + i) % ROUTER_PORTS.size();
+            // every router may be backing off, the last one is then tried anyway
+            if (retryAt[router] > now && !last(i)) {
+                continue;
+            }
+
+            ZMQ.Socket socket = getSocket(router, last(i) ? ROUTER_TIMEOUT : HELLO_TIMEOUT);
+            if (socket != null && socket.send(request.getBytes(ZMQ.CHARSET))) {
+                byte[] reply = socket.recv();
+                if (reply != null) {
+                    current = router;
+                    backoff[router] = 0;
+                    retryAt[router] = 0;
+                    return new String(reply, ZMQ.CHARSET);
+                }
+            }
+
+            // a REQ socket that lost its reply cannot send again, the next request to this router gets a new one
+            disconnect(router);
+            backoff[router] = backoff[router] == 0 ? BACKOFF_MIN : Math.min(backoff[router] * 2, BACKOFF_MAX);
+            retryAt[router] = System.currentTimeMillis() + backoff[router];
+        }
+        return null;
+    }
+
+    private static boolean last(int attempt) {
+        return attempt == ROUTER_PORTS.size() - 1;
+    }
+
+    // The router's socket, opened if it has none, or null if a new socket got no answer to its hello in time
+    private static ZMQ.Socket getSocket(int router, int helloTimeout) {
+        if (sockets[router] == null) {
+            ZMQ.Socket socket = getContext().createSocket(SocketType.REQ);
+            socket.setLinger(0);
+            socket.setReceiveTimeOut(helloTimeout);
+            socket.setSendTimeOut(ROUTER_TIMEOUT);
+            socket.connect(ROUTER_ADDRESS + ROUTER_PORTS.get(router));
+            sockets[router] = socket;
+
+            Message hello = new Message();
+            hello.setMethod("hello");
+            if (!socket.send(hello.toJson().getBytes(ZMQ.CHARSET)) || socket.recv() == null) {
+                return null;
+            }
+            socket.setReceiveTimeOut(ROUTER_TIMEOUT);
+        }
+        return sockets[router];
+    }
+
+    private static void disconnect(int router) {
+        if (sockets[router] != null) {
+            sockets[router].close();
+            sockets[router] = null;
+        }
+    }
+
+    private static synchronized void close() {
+        for (int router = 0; router < sockets.length; router++) {
+            disconnect(router);
+        }
+        context.close();
+    }
+}
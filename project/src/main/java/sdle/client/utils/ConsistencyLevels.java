@@ -0,0 +1,58 @@
+package sdle.client.utils;
+
+// The N, R and W this client asks for on every request, given on the command line as n=<N>, r=<R> and w=<W>,
+// e.g. w=1 to get edits acknowledged as soon as one server has them, or w=2 to know they are on two.
+// The levels that are not given are left to the cluster's settings.
+public class ConsistencyLevels {
+
+    private static String replicationFactor;
+
+    private static String readQuorum;
+
+    private static String writeQuorum;
+
+    // Takes an n=, r= or w= argument, returns false if the argument is not one
+    public static boolean parse(String argument) {
+        String[] parts = argument.split("=", 2);
+        if (parts.length != 2) {
+            return false;
+        }
+        try {
+            if (Integer.parseInt(parts[1]) < 1) {
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        switch (parts[0]) {
+            case "n" -> replicationFactor = parts[1];
+            case "r" -> readQuorum = parts[1];
+            case "w" -> writeQuorum = parts[1];
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Adds the client's levels to a request
+    public static void apply(Message message) {
+        message.setReplicationFactor(replicationFactor);
+        message.setReadQuorum(readQuorum);
+        message.setWriteQuorum(writeQuorum);
+    }
+
+    // The client's N, or the given default if it has none
+    public static int replicationFactor(int defaultLevel) {
+        return replicationFactor == null ? defaultLevel : Integer.parseInt(replicationFactor);
+    }
+
+    public static int readQuorum(int defaultLevel) {
+        return readQuorum == null ? defaultLevel : Integer.parseInt(readQuorum);
+    }
+
+    public static int writeQuorum(int defaultLevel) {
+        return writeQuorum == null ? defaultLevel : Integer.parseInt(writeQuorum);
+    }
+}
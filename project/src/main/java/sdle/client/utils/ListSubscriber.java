@@ -0,0 +1,83 @@
+package sdle.client.utils;
+
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMsg;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Updates of the lists the client has open, pushed by the servers through the routers instead of polled.
+// Every router relays every update, so the client subscribes on a single one, the router its requests go to, and
+// moves its subscription when the requests move to another router. Updates missed while moving are picked up by
+// the periodic sync of the open list.
+public class ListSubscriber {
+
+    private static final String ROUTER_ADDRESS = "tcp://127.0.0.1:";
+
+    private static final List<Integer> PUBLISH_PORTS = List.of(6101, 6102, 6103);
+
+    private static ZMQ.Socket socket;
+
+    private static ZMQ.Poller poller;
+
+    // the router the socket is connected to
+    private static int router = -1;
+
+    private static final Set<String> subscribed = new HashSet<>();
+
+    public static synchronized void subscribe(String listUUID) {
+        if (socket == null) {
+            socket = ConnectionManager.getContext().createSocket(SocketType.SUB);
+            poller = ConnectionManager.getContext().createPoller(1);
+            poller.register(socket, ZMQ.Poller.POLLIN);
+        }
+        if (subscribed.add(listUUID)) {
+            socket.subscribe(listUUID.getBytes(ZMQ.CHARSET));
+        }
+    }
+
+    public static synchronized void unsubscribe(String listUUID) {
+        if (socket != null && subscribed.remove(listUUID)) {
+            socket.unsubscribe(listUUID.getBytes(ZMQ.CHARSET));
+        }
+    }
+
+    // Waits up to the given time for updates and merges every update received since the last call into the
+    // user's lists, returns whether the given list changed
+    public static synchronized boolean receiveUpdates(String user, String listUUID, long timeout) {
+        if (socket == null) {
+            return false;
+        }
+
+        // the socket keeps its subscriptions and sends them to the router it connects to
+        int currentRouter = ConnectionManager.currentRouter();
+        if (currentRouter != router) {
+            if (router >= 0) {
+                socket.disconnect(ROUTER_ADDRESS + PUBLISH_PORTS.get(router));
+            }
+            socket.connect(ROUTER_ADDRESS + PUBLISH_PORTS.get(currentRouter));
+            router = currentRouter;
+        }
+
+        if (poller.poll(timeout) <= 0) {
+            return false;
+        }
+
+        boolean changed = false;
+        ZMsg update;
+        while ((update = ZMsg.recvMsg(socket, ZMQ.DONTWAIT)) != null) {
+            String updatedList = update.popString();
+            String listContent = update.popString();
+            update.destroy();
+
+            // an update this client already has, its own write coming back, does not change anything
+            if (subscribed.contains(updatedList) && listContent != null
+                    && Utils.mergeListInDatabase(user, updatedList, listContent)) {
+                changed |= updatedList.equals(listUUID);
+            }
+        }
+        return changed;
+    }
+}
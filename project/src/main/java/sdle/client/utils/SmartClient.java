@@ -0,0 +1,269 @@
+package sdle.client.utils;
+
+import com.google.gson.JsonSyntaxException;
+import org.zeromq.SocketType;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import sdle.client.utils.CRDT.MapPNCounter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static sdle.client.utils.CRDT.toMapPNCounter;
+
+// Smart client mode: the client keeps its own copy of the hash ring, taken from a router once, and sends getList,
+// updateList and syncList straight to the servers that hold the list instead of going through a router.
+// Requests carry the epoch of the ring they were routed with, and a server on a newer ring answers with that ring,
+// which the client keeps before routing the request again.
+public class SmartClient {
+
+    private static final int SERVER_TIMEOUT = 1000;
+
+    // a write with W over 1 is answered once the server heard from enough replicas, like the routers' timeout
+    private static final int WRITE_TIMEOUT = 2500;
+
+    private static final AtomicReference<HashRing> hashRing = new AtomicReference<>();
+
+    private static volatile boolean enabled = false;
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    // Reads a list from a quorum of its replicas and merges their copies, returns null if that failed
+    public static Message getList(String listUUID) {
+        // a second try only happens when a server had a newer ring
+        for (int attempt = 0; attempt < 2; attempt++) {
+            HashRing ring = getHashRing();
+            if (ring == null) {
+                return null;
+            }
+            int replicationFactor = replicationFactor(ring);
+            if (replicationFactor < 0) {
+                return null;
+            }
+            List<String> replicas = getReplicas(ring, listUUID, replicationFactor);
+            int quorum = Math.min(ConsistencyLevels.readQuorum(ring.getReadQuorum()), replicas.size());
+
+            List<Message> replies = new ArrayList<>();
+            boolean stale = false;
+
+            ZContext context = ConnectionManager.getContext();
+            List<ZMQ.Socket> sockets = new ArrayList<>();
+            // ask every replica at once and stop waiting as soon as a quorum answered
+            ZMQ.Poller poller = context.createPoller(replicas.size());
+            try {
+                for (String node : replicas) {
+                    Message message = new Message();
+                    message.setMethod("getList");
+                    ConsistencyLevels.apply(message);
+                    message.setListUUID(listUUID);
+                    message.setVirtualnode(HashRing.virtualNode(node));
+                    message.setRingEpoch(String.valueOf(ring.getEpoch()));
+
+                    ZMQ.Socket socket = connect(context, ring, node, SERVER_TIMEOUT);
+                    sockets.add(socket);
+                    socket.send(message.toJson().getBytes(ZMQ.CHARSET));
+                    poller.register(socket, ZMQ.Poller.POLLIN);
+                }
+
+                boolean[] answered = new boolean[replicas.size()];
+                int answers = 0;
+                long deadline = System.currentTimeMillis() + SERVER_TIMEOUT;
+                while (replies.size() < quorum && answers < replicas.size()) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0 || poller.poll(remaining) < 0) {
+                        break;
+                    }
+                    for (int i = 0; i < replicas.size(); i++) {
+                        if (answered[i] || !poller.pollin(i)) {
+                            continue;
+                        }
+                        answered[i] = true;
+                        answers++;
+
+                        String response = sockets.get(i).recvStr();
+                        if (isBusy(response)) {
+                            continue;
+                        }
+                        if (isStaleRing(response)) {
+                            stale = true;
+                            continue;
+                        }
+                        Message reply = parseReply(response);
+                        if (reply != null) {
+                            replies.add(reply);
+                        }
+                    }
+                }
+            } finally {
+                poller.close();
+                sockets.forEach(ZMQ.Socket::close);
+            }
+
+            if (stale) {
+                continue;
+            }
+            if (replies.isEmpty()) {
+                // the servers may have moved, take the ring from a router again on the next request
+                hashRing.set(null);
+                return null;
+            }
+            if (replies.size() < quorum) {
+                // the read fails rather than settle for fewer replicas than asked for
+                return null;
+            }
+            return mergeReplies(listUUID, replies);
+        }
+        return null;
+    }
+
+    // Sends an updateList or syncList to the first of the list's replicas that answers, which stores it and
+    // replicates it to the others. A replica other than the responsible node hands the responsible node's copy off
+    // to it. Returns the server's answer, or null if no replica answered.
+    public static String write(Message message) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            HashRing ring = getHashRing();
+            if (ring == null) {
+                return null;
+            }
+
+            boolean stale = false;
+            ZContext context = ConnectionManager.getContext();
+            int replicationFactor = replicationFactor(ring);
+            if (replicationFactor < 0) {
+                return null;
+            }
+            int timeout = ConsistencyLevels.writeQuorum(ring.getWriteQuorum()) > 1 ? WRITE_TIMEOUT : SERVER_TIMEOUT;
+            for (String node : getReplicas(ring, message.getListUUID(), replicationFactor)) {
+                message.setVirtualnode(HashRing.virtualNode(node));
+                message.setRingEpoch(String.valueOf(ring.getEpoch()));
+
+                ZMQ.Socket socket = connect(context, ring, node, timeout);
+                socket.send(message.toJson().getBytes(ZMQ.CHARSET));
+                String response = socket.recvStr();
+                socket.close();
+
+                if (response == null || isBusy(response)) {
+                    continue;
+                }
+                if (isStaleRing(response)) {
+                    stale = true;
+                    break;
+                }
+                return response;
+            }
+
+            if (!stale) {
+                hashRing.set(null);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    // The list's responsible node followed by the nodes holding its other replicas, n nodes in all
+    private static List<String> getReplicas(HashRing ring, String listUUID, int n) {
+        String responsibleServer = ring.getResponsibleNode(listUUID);
+
+        List<String> replicas = new ArrayList<>();
+        replicas.add(responsibleServer);
+        List<String> preferenceList = ring.getPreferenceList(responsibleServer);
+        replicas.addAll(preferenceList.subList(0, Math.max(0, Math.min(n - 1, preferenceList.size()))));
+        return replicas;
+    }
+
+    private static ZMQ.Socket connect(ZContext context, HashRing ring, String node, int timeout) {
+        ZMQ.Socket socket = context.createSocket(SocketType.REQ);
+        socket.setLinger(0);
+        socket.setReceiveTimeOut(timeout);
+        socket.connect(ring.getEndpoint(HashRing.serverId(node)));
+        return socket;
+    }
+
+    // The cached ring, asked to a router the first time and after the servers stopped answering
+    // The client's N, the cluster's one that comes with the ring if it has none. -1 if the client asked for more
+    // replicas than the cluster keeps, which the servers would not keep past the next membership change.
+    private static int replicationFactor(HashRing ring) {
+        int replicationFactor = ConsistencyLevels.replicationFactor(ring.getReplicationFactor());
+        if (replicationFactor > ring.getReplicationFactor()) {
+            System.out.println("N of " + replicationFactor + " is above the cluster's " + ring.getReplicationFactor());
+            return -1;
+        }
+        return replicationFactor;
+    }
+
+    private static HashRing getHashRing() {
+        HashRing ring = hashRing.get();
+        if (ring != null) {
+            return ring;
+        }
+
+        Message message = new Message();
+        message.setMethod("createHashRing");
+
+        String response = ConnectionManager.request(message.toJson());
+        Message reply = response == null ? null : parseReply(response);
+        if (reply == null || reply.getHashRing() == null) {
+            return null;
+        }
+        return hashRing.accumulateAndGet(HashRing.fromString(reply.getHashRing()), HashRing::newest);
+    }
+
+    // Servers refuse requests routed with an older ring than theirs and answer with their ring
+    private static boolean isStaleRing(String response) {
+        if (!response.startsWith("{\"method\":\"staleRing\"")) {
+            return false;
+        }
+        Message reply = parseReply(response);
+        if (reply != null && reply.getHashRing() != null) {
+            HashRing ring = HashRing.fromString(reply.getHashRing());
+            hashRing.accumulateAndGet(ring, HashRing::newest);
+            System.out.println("Routing with hash ring of epoch " + ring.getEpoch());
+        }
+        return true;
+    }
+
+    // A server whose request queue is full answers busy without handling the request, another replica is tried
+    private static boolean isBusy(String response) {
+        return response.startsWith("{\"method\":\"busy\"");
+    }
+
+    private static Message parseReply(String response) {
+        try {
+            return Message.fromJson(response);
+        } catch (JsonSyntaxException e) {
+            System.out.println("Invalid response from server: " + response);
+            return null;
+        }
+    }
+
+    // Merges the copies of the list returned by its replicas, replicas that do not have the list are ignored
+    private static Message mergeReplies(String listUUID, List<Message> replies) {
+        Message merged = new Message();
+        merged.setListUUID(listUUID);
+
+        MapPNCounter mergedContent = null;
+        for (Message reply : replies) {
+            if (reply.getListcontent() == null) {
+                continue;
+            }
+            if (merged.getListname() == null) {
+                merged.setListname(reply.getListname());
+            }
+
+            MapPNCounter content = toMapPNCounter(reply.getListcontent());
+            mergedContent = mergedContent == null ? content : MapPNCounter.merge(mergedContent, content);
+        }
+
+        if (mergedContent != null) {
+            merged.setListcontent(mergedContent.toJson());
+        }
+        return merged;
+    }
+}
@@ -1,8 +1,6 @@
 package sdle.client.utils;
 
-import org.zeromq.SocketType;
-import org.zeromq.ZContext;
-import org.zeromq.ZMQ;
+import com.google.gson.JsonParser;
 import sdle.client.utils.CRDT.MapPNCounter;
 
 import java.sql.*;
@@ -13,10 +11,6 @@ import static sdle.client.utils.CRDT.toMapPNCounter;
 
 public class Utils {
 
-    private static final String ROUTER_ADDRESS = "tcp://127.0.0.1:";
-
-    private static final List<Integer> ROUTER_PORTS = new ArrayList<>(List.of(6001, 6002, 6003));
-
     public static void clearConsole() {
         // Print multiple new lines to simulate clearing the console
         for (int i = 0; i < 25; i++) {
@@ -107,29 +101,36 @@ public class Utils {
         String name = getListName(user,shoppingListUUID);
         String listContent = getListProducts(user,shoppingListUUID);
 
-        try (ZContext context = new ZContext()) {
-            int routerPort = connectRouter();
-
-            if(routerPort == 0){
-                //System.out.println("Could not connect to router");
-                return;
-            }
-
-            ZMQ.Socket socket = context.createSocket(SocketType.REQ);
-            socket.connect(ROUTER_ADDRESS + routerPort);
-
+        if (SmartClient.isEnabled()) {
             Message message = new Message();
-
             message.setMethod("updateList");
+            ConsistencyLevels.apply(message);
             message.setListUUID(shoppingListUUID);
             message.setListcontent(listContent);
             message.setListname(name);
 
-            socket.send(message.toJson().getBytes(ZMQ.CHARSET));
+            String reply = SmartClient.write(message);
+            if (reply != null) {
+                System.out.println("Received reply from server: " + reply);
+                return;
+            }
+            // no server answered, the router may still reach one
+        }
 
-            byte[] reply = socket.recv();
-            System.out.println("Received reply from server: " + new String(reply, ZMQ.CHARSET));
+        Message message = new Message();
+
+        message.setMethod("updateList");
+        ConsistencyLevels.apply(message);
+        message.setListUUID(shoppingListUUID);
+        message.setListcontent(listContent);
+        message.setListname(name);
+
+        String reply = ConnectionManager.request(message.toJson());
+        if(reply == null){
+            //System.out.println("Could not connect to router");
+            return;
         }
+        System.out.println("Received reply from server: " + reply);
     }
 
     public static boolean productExistsInList(String user,String listUUID, String productName) {
@@ -248,65 +249,191 @@ public class Utils {
     }
 
     public static boolean updateListFromServer(String user, String shoppingListUUID) {
-        try (ZContext context = new ZContext()) {
-            int routerPort = connectRouter();
-
-            if(routerPort == 0){
-                //System.out.println("\nCould not connect to router");
-                return false;
+        if (SmartClient.isEnabled()) {
+            Message reply = SmartClient.getList(shoppingListUUID);
+            if (reply != null) {
+                return updateListInDatabase(user, reply.getListUUID(), reply.getListcontent());
             }
+        }
 
-            ZMQ.Socket socket = context.createSocket(SocketType.REQ);
-            socket.connect(ROUTER_ADDRESS + routerPort);
+        Message message = new Message();
+        message.setMethod("getList");
+        ConsistencyLevels.apply(message);
+        message.setListUUID(shoppingListUUID);
 
-            Message message = new Message();
-            message.setMethod("getList");
-            message.setListUUID(shoppingListUUID);
+        String response = ConnectionManager.request(message.toJson());
+        if(response == null){
+            //System.out.println("\nCould not connect to router");
+            return false;
+        }
+        Message reply = Message.fromJson(response);
 
-            socket.send(message.toJson().getBytes(ZMQ.CHARSET));
+        if(reply.getMethod()!= null && reply.getMethod().equals("error")){
+            //System.out.println("\nCould not connect to server");
+            return false;
+        }
 
-            byte[] response = socket.recv();
-            Message reply = Message.fromJson(new String(response, ZMQ.CHARSET));
+        // Save the list in the database
+        return updateListInDatabase(user,reply.getListUUID(), reply.getListcontent());
+    }
 
-            if(reply.getMethod()!= null && reply.getMethod().equals("error")){
-                //System.out.println("\nCould not connect to server");
-                return false;
-            }
+    // Sends the list to the server and stores the server's copy merged with it, in a single request
+    public static boolean syncListWithServer(String user, String shoppingListUUID) {
+        Message message = new Message();
+        message.setMethod("syncList");
+        ConsistencyLevels.apply(message);
+        message.setListUUID(shoppingListUUID);
+        message.setListname(getListName(user, shoppingListUUID));
+        message.setListcontent(getListProducts(user, shoppingListUUID));
+
+        String response = null;
+        if (SmartClient.isEnabled()) {
+            response = SmartClient.write(message);
+        }
+        if (response == null) {
+            response = ConnectionManager.request(message.toJson());
+        }
+        if(response == null){
+            //System.out.println("\nCould not connect to router");
+            return false;
+        }
+        Message reply = Message.fromJson(response);
 
-            // Save the list in the database
-            return updateListInDatabase(user,reply.getListUUID(), reply.getListcontent());
+        if(reply.getMethod() != null && reply.getMethod().equals("error") || reply.getListcontent() == null){
+            //System.out.println("\nCould not connect to server");
+            return false;
         }
+
+        // Save the merged list in the database
+        return updateListInDatabase(user, shoppingListUUID, reply.getListcontent());
     }
 
-    public static boolean getListFromServer(String user, String shoppingListUUID) {
-        try (ZContext context = new ZContext()) {
-            int routerPort = connectRouter();
+    // Sends every list of the user to the server and reads them all back, with one multiUpdateList
+    // and one multiGetList instead of an updateList and a getList per list
+    public static boolean syncListsWithServer(String user) {
+        List<Message> lists = getAllLists(user);
+        if (lists.isEmpty()) {
+            return true;
+        }
 
-            if(routerPort == 0){
-                System.out.println("\nCould not connect to router");
-                return false;
+        Message message = new Message();
+        message.setMethod("multiUpdateList");
+        ConsistencyLevels.apply(message);
+        message.setLists(lists);
+
+        String reply = ConnectionManager.request(message.toJson());
+        if(reply == null){
+            //System.out.println("\nCould not connect to router");
+            return false;
+        }
+        System.out.println("Received reply from server: " + reply);
+
+        // lists the servers could not store keep their local changes and are sent again on the next sync
+        boolean updated = true;
+        Message replyMessage = Message.fromJson(reply);
+        if (replyMessage.getLists() == null) {
+            updated = false;
+        } else {
+            for (Message list : replyMessage.getLists()) {
+                if (isError(list)) {
+                    updated = false;
+                }
             }
+        }
 
-            ZMQ.Socket socket = context.createSocket(SocketType.REQ);
-            socket.connect(ROUTER_ADDRESS + routerPort);
+        List<Message> listUUIDs = new ArrayList<>();
+        for (Message list : lists) {
+            Message entry = new Message();
+            entry.setListUUID(list.getListUUID());
+            listUUIDs.add(entry);
+        }
 
-            Message message = new Message();
-            message.setMethod("getList");
-            message.setListUUID(shoppingListUUID);
+        message = new Message();
+        message.setMethod("multiGetList");
+        ConsistencyLevels.apply(message);
+        message.setLists(listUUIDs);
+
+        String response = ConnectionManager.request(message.toJson());
+        if(response == null){
+            //System.out.println("\nCould not connect to router");
+            return false;
+        }
+        Message responseMessage = Message.fromJson(response);
+
+        if(responseMessage.getLists() == null){
+            //System.out.println("\nCould not connect to server");
+            return false;
+        }
+
+        // Merge the servers' copies into the local ones, so changes the servers do not have yet are not lost, and
+        // lists the servers could not read are kept as they are
+        for (Message list : responseMessage.getLists()) {
+            if (isError(list) || list.getListcontent() == null) {
+                updated = false;
+                continue;
+            }
+            mergeListInDatabase(user, list.getListUUID(), list.getListcontent());
+        }
+        return updated;
+    }
 
-            socket.send(message.toJson().getBytes(ZMQ.CHARSET));
+    private static boolean isError(Message list) {
+        return "error".equals(list.getMethod());
+    }
+
+    public static List<Message> getAllLists(String user) {
+        String url = "jdbc:sqlite:database/client/" + user + "_shopping.db";
+        List<Message> lists = new ArrayList<>();
 
-            byte[] response = socket.recv();
-            Message reply = Message.fromJson(new String(response, ZMQ.CHARSET));
+        try (Connection connection = DriverManager.getConnection(url)) {
+            if (connection != null) {
+                String sql = "SELECT list_uuid, list_name, list_content FROM shopping_lists";
+
+                try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                    ResultSet rs = pstmt.executeQuery();
 
-            if(reply.getMethod() !=null && reply.getMethod().equals("error")){
-                System.out.println("\nCould not connect to server");
-                return false;
+                    while (rs.next()) {
+                        Message list = new Message();
+                        list.setListUUID(rs.getString("list_uuid"));
+                        list.setListname(rs.getString("list_name"));
+                        list.setListcontent(rs.getString("list_content"));
+                        lists.add(list);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            System.out.println("Error fetching Shopping Lists: " + e.getMessage());
+        }
+        return lists;
+    }
+
+    public static boolean getListFromServer(String user, String shoppingListUUID) {
+        if (SmartClient.isEnabled()) {
+            Message reply = SmartClient.getList(shoppingListUUID);
+            if (reply != null) {
+                return saveListInDatabase(user, reply.getListname(), reply.getListUUID(), reply.getListcontent());
             }
+        }
+
+        Message message = new Message();
+        message.setMethod("getList");
+        ConsistencyLevels.apply(message);
+        message.setListUUID(shoppingListUUID);
 
-            // Save the list in the database
-            return saveListInDatabase(user, reply.getListname(), reply.getListUUID(), reply.getListcontent());
+        String response = ConnectionManager.request(message.toJson());
+        if(response == null){
+            System.out.println("\nCould not connect to router");
+            return false;
         }
+        Message reply = Message.fromJson(response);
+
+        if(reply.getMethod() !=null && reply.getMethod().equals("error")){
+            System.out.println("\nCould not connect to server");
+            return false;
+        }
+
+        // Save the list in the database
+        return saveListInDatabase(user, reply.getListname(), reply.getListUUID(), reply.getListcontent());
     }
 
     public static boolean saveListInDatabase(String user, String listName, String shoppingListUUID, String listContent) {
@@ -331,6 +458,20 @@ public class Utils {
         return false;
     }
 
+    // Merges content received from the servers into the stored list, returns whether that changed the list
+    public static boolean mergeListInDatabase(String user, String shoppingListUUID, String listContent) {
+        String storedContent = getListProducts(user, shoppingListUUID);
+        if (storedContent == null) {
+            return false;
+        }
+
+        String mergedContent = MapPNCounter.merge(toMapPNCounter(storedContent), toMapPNCounter(listContent)).toJson();
+        if (JsonParser.parseString(mergedContent).equals(JsonParser.parseString(storedContent))) {
+            return false;
+        }
+        return updateListInDatabase(user, shoppingListUUID, mergedContent);
+    }
+
     public static boolean updateListInDatabase(String user, String shoppingListUUID, String listContent) {
         String url = "jdbc:sqlite:database/client/" + user + "_shopping.db";
 
@@ -351,39 +492,5 @@ public class Utils {
         }
         return false;
     }
-
-    public static int connectRouter() {
-        ZMQ.Socket routerSocket = null;
-        ZContext context = new ZContext();
-        for (int routerPort : ROUTER_PORTS) {
-            routerSocket = context.createSocket(SocketType.REQ);
-            routerSocket.connect("tcp://localhost:" + routerPort);
-            //System.out.println("trying to connect to port " + routerPort + "...");
-
-            routerSocket.setReceiveTimeOut(200);
-
-            sdle.server.utils.Message message = new sdle.server.utils.Message();
-            message.setMethod("hello");
-
-            routerSocket.send(message.toJson().getBytes(ZMQ.CHARSET));
-
-            byte[] response = routerSocket.recv();
-
-            if (response == null) {
-                //System.out.println("No response from router on port " + routerPort);
-                routerSocket.close();
-                continue;
-            }
-            String responseMessage = new String(response, ZMQ.CHARSET);
-
-            sdle.server.utils.Message responseMessageObject = sdle.server.utils.Message.fromJson(responseMessage);
-
-            if (responseMessageObject.getMethod().equals("hello")) {
-                //System.out.println("Connected to router on port " + routerPort);
-                return routerPort;
-            }
-        }
-        return 0;
-    }
 }
 
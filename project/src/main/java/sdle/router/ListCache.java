@@ -0,0 +1,77 @@
+package sdle.router;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded LRU cache of the getList responses sent by the router, keyed by list UUID.
+// Entries older than maxStaleness are never served, and writes that go through the router invalidate the list,
+// so a cached copy can only miss the writes made through other routers during that window.
+public class ListCache {
+    private final int capacity;
+
+    private final long maxStaleness;
+
+    private final Map<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public ListCache(int capacity, long maxStaleness) {
+        this.capacity = capacity;
+        this.maxStaleness = maxStaleness;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ListCache.this.capacity;
+            }
+        };
+    }
+
+    // Returns the cached response for the list, or null if there is none or it is too old
+    public synchronized String get(String listUUID) {
+        Entry entry = entries.get(listUUID);
+        if (entry == null || entry.response == null || System.currentTimeMillis() - entry.time > maxStaleness) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.response;
+    }
+
+    // Caches a response read from the servers, readStart is when the read began: a response read before the
+    // list was last invalidated may not contain that write and is not cached
+    public synchronized void put(String listUUID, String response, long readStart) {
+        if (capacity <= 0) {
+            return;
+        }
+        Entry entry = entries.get(listUUID);
+        if (entry != null && entry.response == null && entry.time >= readStart) {
+            return;
+        }
+        entries.put(listUUID, new Entry(response, System.currentTimeMillis()));
+    }
+
+    public synchronized void invalidate(String listUUID) {
+        if (capacity <= 0) {
+            return;
+        }
+        entries.put(listUUID, new Entry(null, System.currentTimeMillis()));
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private record Entry(String response, long time) {
+    }
+}
@@ -0,0 +1,64 @@
+package sdle.router;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Requests this router has sent to every server, used for consistent hashing with bounded loads: a server may
+// have at most loadFactor times the average number of requests in flight, and reads are not sent to a replica over
+// that bound while enough other replicas can answer them. A loadFactor of 0 or less disables the bound.
+public class LoadTracker {
+    private final double loadFactor;
+
+    private final Map<Integer, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+
+    private final Map<Integer, AtomicLong> sent = new ConcurrentHashMap<>();
+
+    private final AtomicInteger totalInFlight = new AtomicInteger();
+
+    public LoadTracker(double loadFactor) {
+        this.loadFactor = loadFactor;
+    }
+
+    public boolean isEnabled() {
+        return loadFactor > 0;
+    }
+
+    public void started(int serverId) {
+        inFlight.computeIfAbsent(serverId, server -> new AtomicInteger()).incrementAndGet();
+        sent.computeIfAbsent(serverId, server -> new AtomicLong()).incrementAndGet();
+        totalInFlight.incrementAndGet();
+    }
+
+    public void finished(int serverId) {
+        inFlight.get(serverId).decrementAndGet();
+        totalInFlight.decrementAndGet();
+    }
+
+    // True if one more request would take the server over its share of the requests in flight to the given servers
+    public boolean isOverloaded(int serverId, Collection<Integer> servers) {
+        if (!isEnabled() || servers.isEmpty()) {
+            return false;
+        }
+        double bound = Math.ceil(loadFactor * (totalInFlight.get() + 1) / servers.size());
+        return load(serverId) + 1 > bound;
+    }
+
+    public int load(int serverId) {
+        AtomicInteger load = inFlight.get(serverId);
+        return load == null ? 0 : load.get();
+    }
+
+    // Requests in flight and requests sent so far, per server
+    public Map<Integer, Map<String, Long>> snapshot() {
+        Map<Integer, Map<String, Long>> loads = new TreeMap<>();
+        for (Map.Entry<Integer, AtomicLong> entry : sent.entrySet()) {
+            loads.put(entry.getKey(), Map.of("inFlight", (long) load(entry.getKey()),
+                    "sent", entry.getValue().get()));
+        }
+        return loads;
+    }
+}
@@ -1,417 +1,1266 @@
 package sdle.router;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
 import org.zeromq.SocketType;
 import org.zeromq.ZContext;
+import org.zeromq.ZFrame;
 import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+import org.zeromq.ZMsg;
+import sdle.router.utils.CRDT;
+import sdle.router.utils.FailureDetector;
+import sdle.router.utils.HashRing;
 import sdle.router.utils.Message;
+import sdle.router.utils.RingHashFunction;
 
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 public class Router {
     private static final int ROUTER_BASE_PORT = 6000;
-    private static final int SERVER_BASE_PORT = 5000;
 
-    private final List<Pair<String, Integer>> hashRing;
+    // replies produced by the worker threads are handed back to the poller loop through this endpoint,
+    // so that only the loop thread ever touches the ROUTER socket
+    private static final String REPLIES_ENDPOINT = "inproc://router-replies-";
 
-    private final List<Integer> serverIds = new ArrayList<>();
+    private static final int WORKER_THREADS = 32;
+
+    private static final int SERVER_TIMEOUT = 1000;
+
+    // a write with W over 1 is answered once its coordinator heard from enough replicas, which it waits for up
+    // to its own write quorum timeout
+    private static final int WRITE_TIMEOUT = 2500;
+
+    // servers hand over and copy lists before acknowledging a membership change, which takes longer than a request
+    private static final int MEMBERSHIP_TIMEOUT = 10000;
+
+    // how often every server is pinged, and the phi over which a server that stopped answering is suspected
+    private static final int PROBE_INTERVAL = 250;
+
+    private static final double PHI_THRESHOLD = 8;
+
+    // the routers keep each other's ring up to date: a router that changes the ring sends it to the others right
+    // away, and every router also swaps rings with another one at random on every gossip round
+    private static final List<Integer> ROUTER_PORTS = List.of(6001, 6002, 6003);
+
+    private static final int GOSSIP_INTERVAL = 500;
+
+    private static final int ROUTER_TIMEOUT = 500;
+
+    // clients subscribe to the lists they have open on this port plus the router's id, and get every update the
+    // servers publish for them
+    private static final int PUBLISH_BASE_PORT = 6100;
+
+    // how often the relay of list updates looks for servers that joined or left the ring
+    private static final int RELAY_INTERVAL = 1000;
+
+    // the current ring, joins and leaves publish a new one instead of changing it, so a request reads it
+    // once and routes against that snapshot
+    private final AtomicReference<HashRing> hashRing;
 
     private final int numberOfServers;
 
     private final int virtualNodesPerServer;
 
+    private final ListCache listCache;
+
+    private final LoadTracker loadTracker;
+
+    // getList reads currently waiting on the servers, concurrent reads of the same list share them
+    private final Map<String, CompletableFuture<String>> inFlightReads = new ConcurrentHashMap<>();
+
     private int id;
 
-    public Router(int id, int numberOfServers, int virtualNodesPerServer) {
-        this.numberOfServers = numberOfServers;
-        this.virtualNodesPerServer = virtualNodesPerServer;
-        this.id = id;
-        hashRing = createHashRing(numberOfServers, virtualNodesPerServer);
-    }
+    private final ExecutorService workers = Executors.newFixedThreadPool(WORKER_THREADS);
 
-    private List<Pair<String, Integer>> createHashRing(int numberOfServers, int virtualNodesPerServer) {
-        List<Pair<String, Integer>> ring = new ArrayList<>();
-        for (int i = 1; i <= numberOfServers; i++) {
-            //add id to list
-            serverIds.add(i);
-            for (int j = 1; j <= virtualNodesPerServer; j++) {
-                String serverNode = "S" + i + "V" + j;
-                int hash = getSHA256Hash(serverNode) % 1000; // Modulo 100
-                ring.add(new Pair<>(serverNode, hash));
-            }
-        }
-        ring.sort(Comparator.comparingInt(Pair::right));
+    private ZContext context;
 
-        return ring;
-    }
+    private ThreadLocal<ZMQ.Socket> replySockets;
 
-    private int getSHA256Hash(String input) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(input.getBytes(StandardCharsets.UTF_8));
-            return byteArrayToInt(hash);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return 0;
-        }
-    }
+    private ServerConnectionPool serverConnections;
 
-    private int byteArrayToInt(byte[] bytes) {
-        int value = 0;
-        for (byte b : bytes) {
-            value = (value << 8) | (b & 0xFF);
-        }
-        return value;
+    // membership changes get their own connections, so requests timing out on a server that is busy handing over
+    // lists do not drop its acknowledgement
+    private ServerConnectionPool membershipConnections;
+
+    private FailureDetector failureDetector;
+
+    private final ScheduledExecutorService gossip = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ring-gossip");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public Router(int id, int numberOfServers, int virtualNodesPerServer, int replicationFactor, int readQuorum,
+                  int writeQuorum, RingHashFunction hashFunction, int cacheCapacity, long cacheMaxStaleness,
+                  double loadFactor) {
+        this.numberOfServers = numberOfServers;
+        this.virtualNodesPerServer = virtualNodesPerServer;
+        this.listCache = new ListCache(cacheCapacity, cacheMaxStaleness);
+        this.loadTracker = new LoadTracker(loadFactor);
+        this.id = id;
+        // the cluster's N, R and W travel with the ring, so the servers and smart clients use the same ones
+        this.hashRing = new AtomicReference<>(HashRing.create(numberOfServers, virtualNodesPerServer, hashFunction,
+                new HashRing.Levels(replicationFactor, readQuorum, writeQuorum)));
     }
 
     public String getResponsibleServer(String listUUID) {
-        int hash = getSHA256Hash(listUUID) % 1000; // Modulo 100
-        for (Pair<String, Integer> pair : hashRing) {
-            if (hash <= pair.right()) {
-                return pair.left();
-            }
-        }
-        return hashRing.get(0).left();
+        return hashRing.get().getResponsibleNode(listUUID);
     }
 
     public void startRouter() {
         try (ZContext context = new ZContext()) {
-            ZMQ.Socket routerSocket = context.createSocket(SocketType.REP);
+            this.context = context;
+
+            // ROUTER frontend: every request carries the identity of the client that sent it, so many
+            // requests can be in flight at once and each reply is routed back to its own client
+            ZMQ.Socket frontend = context.createSocket(SocketType.ROUTER);
             int ROUTER_PORT = ROUTER_BASE_PORT + id;
-            routerSocket.bind("tcp://*:" + ROUTER_PORT);
+            frontend.bind("tcp://*:" + ROUTER_PORT);
+
+            ZMQ.Socket replies = context.createSocket(SocketType.PULL);
+            replies.bind(REPLIES_ENDPOINT + id);
+
+            replySockets = ThreadLocal.withInitial(() -> {
+                ZMQ.Socket socket = context.createSocket(SocketType.PUSH);
+                socket.connect(REPLIES_ENDPOINT + id);
+                return socket;
+            });
+
+            serverConnections = new ServerConnectionPool(context);
+            membershipConnections = new ServerConnectionPool(context);
+
+            failureDetector = new FailureDetector(this::ping, () -> hashRing.get().getServerIds(), PROBE_INTERVAL,
+                    PHI_THRESHOLD);
+            failureDetector.start();
+
+            gossip.scheduleWithFixedDelay(this::gossipHashRing, GOSSIP_INTERVAL, GOSSIP_INTERVAL,
+                    TimeUnit.MILLISECONDS);
+
+            Thread relay = new Thread(this::relayListUpdates, "list-updates");
+            relay.setDaemon(true);
+            relay.start();
+
+            ZMQ.Poller poller = context.createPoller(2);
+            int frontendIndex = poller.register(frontend, ZMQ.Poller.POLLIN);
+            int repliesIndex = poller.register(replies, ZMQ.Poller.POLLIN);
 
             System.out.println("Router is running on port " + ROUTER_PORT);
 
             while (!Thread.currentThread().isInterrupted()) {
-                byte[] request = routerSocket.recv();
-                String receivedMessage = new String(request, ZMQ.CHARSET);
-                System.out.println("Received message from client: " + receivedMessage);
-
-                Message message = Message.fromJson(receivedMessage);
+                if (poller.poll() < 0) {
+                    break;
+                }
 
-                switch (message.getMethod()) {
-                    case "createHashRing" -> {
-                        // ask a thread to send the hash ring to the server
-                        new Thread(() -> sendHashRingToServer(routerSocket)).start();
-                    }
-                    case "joinHashRing" -> {
-                        // ask a thread to add the server to the hash ring
-                        new Thread(() -> handleJoinHashRing(message)).start();
-                    }
-                    case "leaveHashRing" -> {
-                        // ask a thread to remove the server from the hash ring
-                        new Thread(() -> handleLeaveHashRing(message)).start();
-                    }
-                    case "hello" -> {
-                        // ask a thread to send a hello message to the server
-                        new Thread(() -> handleHello(routerSocket)).start();
+                // forward every finished reply to its client
+                if (poller.pollin(repliesIndex)) {
+                    ZMsg reply;
+                    while ((reply = ZMsg.recvMsg(replies, ZMQ.DONTWAIT)) != null) {
+                        reply.send(frontend);
                     }
-                    case "getList" -> {
-                        // ask a thread to reroute the message
-                        new Thread(() -> handleGetList(message,routerSocket)).start();
-                    }
-                    default -> {
-                        //ask a thread to reroute the message
-                        new Thread(() -> rerouteMessage(message,routerSocket)).start();
+                }
+
+                if (poller.pollin(frontendIndex)) {
+                    ZMsg request;
+                    while ((request = ZMsg.recvMsg(frontend, ZMQ.DONTWAIT)) != null) {
+                        ZFrame identity = request.unwrap();
+                        String receivedMessage = request.popString();
+                        request.destroy();
+
+                        if (identity == null || receivedMessage == null) {
+                            continue;
+                        }
+                        System.out.println("Received message from client: " + receivedMessage);
+
+                        dispatch(Message.fromJson(receivedMessage), identity.getData());
                     }
                 }
             }
 
+            workers.shutdownNow();
+            gossip.shutdownNow();
+            failureDetector.stop();
+            serverConnections.close();
+            membershipConnections.close();
         }
     }
 
-    private void handleHello(ZMQ.Socket routerSocket) {
-        Message responseMessage = new Message();
-        responseMessage.setMethod("hello");
+    private void dispatch(Message message, byte[] client) {
+        if (replicationFactor(message) > hashRing.get().getReplicationFactor()) {
+            // rebalancing and hinted handoffs store every list again on the cluster's N nodes, more replicas would
+            // be lost at the next membership change
+            System.out.println("Rejecting N of " + message.getReplicationFactor() + ", the cluster keeps "
+                    + hashRing.get().getReplicationFactor() + " replicas");
+            Message error = new Message();
+            error.setMethod("error");
+            error.setListUUID(message.getListUUID());
+            reply(client, error.toJson());
+            return;
+        }
 
-        routerSocket.send(responseMessage.toJson().getBytes(ZMQ.CHARSET));
-        System.out.println("Sent hello message to server");
+        switch (message.getMethod()) {
+            case "createHashRing" -> {
+                // ask a worker to send the hash ring to the server
+                workers.submit(() -> sendHashRingToServer(message, client));
+            }
+            case "joinHashRing" -> {
+                // ask a worker to add the server to the hash ring
+                workers.submit(() -> handleJoinHashRing(message, client));
+            }
+            case "leaveHashRing" -> {
+                // ask a worker to remove the server from the hash ring
+                workers.submit(() -> handleLeaveHashRing(message));
+            }
+            case "syncHashRing" -> {
+                // another router sent its ring, answered right away with the newer of the two
+                handleSyncHashRing(message, client);
+            }
+            case "hello" -> {
+                // answered right away, there is nothing to wait for
+                handleHello(client);
+            }
+            case "stats" -> {
+                // answered right away, there is nothing to wait for
+                handleStats(client);
+            }
+            case "getList" -> {
+                // ask a worker to reroute the message
+                workers.submit(() -> handleGetList(message, client));
+            }
+            case "multiGetList" -> {
+                // ask a worker to split the batch between the servers
+                workers.submit(() -> handleMultiGetList(message, client));
+            }
+            case "multiUpdateList" -> {
+                // ask a worker to split the batch between the servers
+                workers.submit(() -> handleMultiUpdateList(message, client));
+            }
+            default -> {
+                // ask a worker to reroute the message
+                workers.submit(() -> rerouteMessage(message, client));
+            }
+        }
     }
 
-    public void handleGetList(Message message, ZMQ.Socket routerSocket) {
-        String responsibleServer = getResponsibleServer(message.getListUUID());
-        System.out.println("Responsible server: " + responsibleServer);
+    // Forwards the list updates published by every server of the ring to the clients subscribed to them on this
+    // router. Subscriptions go the other way, so servers only send the updates of lists some client has open.
+    private void relayListUpdates() {
+        ZMQ.Socket subscriber = context.createSocket(SocketType.XSUB);
+        ZMQ.Socket publisher = context.createSocket(SocketType.XPUB);
+        publisher.bind("tcp://*:" + (PUBLISH_BASE_PORT + id));
 
-        String nextNode = getNextNode(responsibleServer);
-        String nextNextNode = getNextNode(nextNode);
+        ZMQ.Poller poller = context.createPoller(2);
+        int subscriberIndex = poller.register(subscriber, ZMQ.Poller.POLLIN);
+        int publisherIndex = poller.register(publisher, ZMQ.Poller.POLLIN);
 
-        // Create list of responsible servers
-        List<String> responsibleServers = new ArrayList<>();
-        responsibleServers.add(responsibleServer);
-        responsibleServers.add(nextNode);
-        responsibleServers.add(nextNextNode);
+        // server id -> publish endpoint the subscriber is connected to
+        Map<Integer, String> servers = new HashMap<>();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                HashRing ring = hashRing.get();
+                // drop the servers that left the ring or moved
+                servers.entrySet().removeIf(server -> {
+                    boolean gone = !ring.getServerIds().contains(server.getKey())
+                            || !ring.getPublishEndpoint(server.getKey()).equals(server.getValue());
+                    if (gone) {
+                        subscriber.disconnect(server.getValue());
+                    }
+                    return gone;
+                });
+                for (int serverId : ring.getServerIds()) {
+                    if (!servers.containsKey(serverId)) {
+                        String endpoint = ring.getPublishEndpoint(serverId);
+                        subscriber.connect(endpoint);
+                        servers.put(serverId, endpoint);
+                    }
+                }
 
-        // Loop through servers
-        for (String server : responsibleServers) {
-            String virtualNode = server.substring(3);
-            int serverPort = Integer.parseInt(server.substring(1, 2)) + SERVER_BASE_PORT;
+                if (poller.poll(RELAY_INTERVAL) < 0) {
+                    break;
+                }
+                if (poller.pollin(subscriberIndex)) {
+                    ZMsg update;
+                    while ((update = ZMsg.recvMsg(subscriber, ZMQ.DONTWAIT)) != null) {
+                        update.send(publisher);
+                    }
+                }
+                if (poller.pollin(publisherIndex)) {
+                    ZMsg subscription;
+                    while ((subscription = ZMsg.recvMsg(publisher, ZMQ.DONTWAIT)) != null) {
+                        subscription.send(subscriber);
+                    }
+                }
+            }
+        } catch (ZMQException e) {
+            // the context was closed
+        }
+    }
 
-            message.setVirtualnode(virtualNode);
+    // Hands a reply to the poller loop, which sends it to the client with the given identity
+    private void reply(byte[] client, String response) {
+        ZMsg reply = new ZMsg();
+        reply.add(response);
+        reply.wrap(new ZFrame(client));
+        reply.send(replySockets.get());
+    }
 
-            //create a socket to send the message to the server
-            try (ZContext context = new ZContext()) {
-                ZMQ.Socket socket = context.createSocket(SocketType.REQ);
-                socket.connect("tcp://localhost:" + serverPort);
+    // Sends a request to a server and waits for its reply, returns null if the server did not respond in time
+    private String sendToServer(int serverId, String request) {
+        return sendToServer(serverId, request, SERVER_TIMEOUT);
+    }
 
-                socket.setReceiveTimeOut(1000);
+    private String sendToServer(int serverId, String request, int timeout) {
+        return sendToServerAsync(serverId, request, timeout).join();
+    }
 
-                String messageToSend = message.toJson();
+    // Sends a request to a server, the future completes with null if the server did not respond in time
+    private CompletableFuture<String> sendToServerAsync(int serverId, String request) {
+        return sendToServerAsync(serverId, request, SERVER_TIMEOUT);
+    }
 
-                System.out.println("Sending message to server: " + messageToSend);
+    private CompletableFuture<String> sendToServerAsync(int serverId, String request, int timeout) {
+        loadTracker.started(serverId);
+        long sentAt = System.currentTimeMillis();
+        return serverConnections.send(hashRing.get().getEndpoint(serverId), request, timeout)
+                .thenApply(response -> {
+                    loadTracker.finished(serverId);
+                    if (response == null) {
+                        failureDetector.suspect(serverId, sentAt);
+                    } else if (isStaleRingReply(response)) {
+                        // the request was routed with an older ring than the server's, and may have gone to the
+                        // wrong replicas, so it counts as not answered and the newer ring is used from now on
+                        return null;
+                    } else if (response.startsWith("{\"method\":\"busy\"")) {
+                        // the server's request queue was full, it is up but did not handle the request
+                        System.out.println("Server " + serverId + " is busy");
+                        return null;
+                    }
+                    return response;
+                });
+    }
 
-                socket.send(messageToSend.getBytes(ZMQ.CHARSET));
+    // Servers refuse requests routed with a ring older than theirs and answer with their ring
+    private boolean isStaleRingReply(String response) {
+        if (!response.startsWith("{\"method\":\"staleRing\"")) {
+            return false;
+        }
+        Message reply = parseReply(response);
+        if (reply != null && reply.getHashRing() != null) {
+            adoptHashRing(HashRing.fromString(reply.getHashRing()));
+        }
+        return true;
+    }
 
-                byte[] response = socket.recv();
+    private boolean ping(int serverId) {
+        Message message = new Message();
+        message.setMethod("ping");
+        return serverConnections.request(hashRing.get().getEndpoint(serverId), message.toJson(),
+                SERVER_TIMEOUT) != null;
+    }
 
-                if (response == null) {
-                    System.out.println("Server " + server + " did not respond");
-                    socket.close();
-                    continue;
-                }
+    private boolean isAvailable(String node) {
+        return failureDetector.isAvailable(HashRing.serverId(node));
+    }
 
-                String responseMessage = new String(response, ZMQ.CHARSET);
+    // The first n nodes keeping a list, its responsible node and the nodes after it, so that every replica's index
+    // is its replication level
+    private List<String> getReplicas(HashRing ring, String listUUID, int n) {
+        String responsibleServer = ring.getResponsibleNode(listUUID);
+        System.out.println("Responsible server: " + responsibleServer);
 
-                System.out.println("Received response from server: " + responseMessage);
+        List<String> replicas = new ArrayList<>();
+        replicas.add(responsibleServer);
+        List<String> preferenceList = ring.getPreferenceList(responsibleServer);
+        replicas.addAll(preferenceList.subList(0, Math.min(n - 1, preferenceList.size())));
+        return replicas;
+    }
 
-                socket.disconnect("tcp://localhost:" + serverPort);
+    // Which of the replicas a read of r of them asks: the ones not suspected to be down, or every one of them if
+    // that would leave fewer than r, a suspicion may be wrong and the read cannot succeed without them anyway.
+    // With bounded loads, replicas over their share of the requests in flight are not asked either, as long as r
+    // replicas are still asked.
+    private boolean[] replicasToAsk(HashRing ring, String listUUID, List<String> replicas, int r) {
+        int quorum = Math.min(r, replicas.size());
+        boolean[] ask = new boolean[replicas.size()];
+        int available = 0;
+        for (int i = 0; i < replicas.size(); i++) {
+            ask[i] = isAvailable(replicas.get(i));
+            available += ask[i] ? 1 : 0;
+        }
+        if (available < quorum) {
+            Arrays.fill(ask, true);
+            return ask;
+        }
+        if (available < replicas.size()) {
+            System.out.println("Skipping suspected replicas of list " + listUUID + ": " + replicas);
+        }
 
-                routerSocket.send(responseMessage.getBytes(ZMQ.CHARSET));
+        Set<Integer> serverIds = ring.getServerIds();
+        for (int i = replicas.size() - 1; i >= 0 && available > quorum; i--) {
+            if (ask[i] && loadTracker.isOverloaded(HashRing.serverId(replicas.get(i)), serverIds)) {
+                System.out.println("Replica " + replicas.get(i) + " of list " + listUUID + " is overloaded, skipping");
+                ask[i] = false;
+                available--;
+            }
+        }
+        return ask;
+    }
 
-                return;
+    // The node that takes a write of the list: its responsible node, or the first node after it on the ring
+    // that is not suspected to be down. A node standing in keeps only the replica of its own level and hands the
+    // responsible node's copy off to it. The load bound does not apply to writes, a busy responsible node still
+    // takes them so that every write is kept by the list's owner.
+    private String getCoordinator(HashRing ring, String listUUID) {
+        String responsibleServer = ring.getResponsibleNode(listUUID);
+
+        List<String> candidates = new ArrayList<>();
+        candidates.add(responsibleServer);
+        candidates.addAll(ring.getPreferenceList(responsibleServer));
+
+        for (String node : candidates) {
+            if (isAvailable(node)) {
+                if (!node.equals(responsibleServer)) {
+                    System.out.println("Responsible server " + responsibleServer + " is suspected, writing to " + node);
+                }
+                return node;
             }
         }
+        return responsibleServer;
+    }
 
-        // If no server responded, send an error message
+    private void handleHello(byte[] client) {
         Message responseMessage = new Message();
-        responseMessage.setMethod("error");
+        responseMessage.setMethod("hello");
 
-        routerSocket.send(responseMessage.toJson().getBytes(ZMQ.CHARSET));
+        reply(client, responseMessage.toJson());
+        System.out.println("Sent hello message to server");
+    }
+
+    private void handleStats(byte[] client) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("ringEpoch", hashRing.get().getEpoch());
+        stats.put("cacheHits", listCache.getHits());
+        stats.put("cacheMisses", listCache.getMisses());
+        stats.put("cacheSize", listCache.size());
+        stats.put("serverLoad", loadTracker.snapshot());
 
-        System.out.println("No server responded");
+        reply(client, new Gson().toJson(stats));
     }
 
-    private void rerouteMessage(Message message, ZMQ.Socket routerSocket) {
-        String responsibleServer = getResponsibleServer(message.getListUUID());
-        System.out.println("Responsible server: " + responsibleServer);
+    public void handleGetList(Message message, byte[] client) {
+        int n = replicationFactor(message);
+        int r = readQuorum(message, n);
 
-        String virtualNode = responsibleServer.substring(3);
-        message.setVirtualnode(virtualNode);
+        // the cache only holds lists read with the cluster's R or more, a read asking for more does not use it
+        String cachedResponse = r <= hashRing.get().getReadQuorum() ? listCache.get(message.getListUUID()) : null;
+        if (cachedResponse != null) {
+            System.out.println("Cache hit for list " + message.getListUUID());
+            reply(client, cachedResponse);
+            return;
+        }
 
-        int serverPort = Integer.parseInt(responsibleServer.substring(1, 2)) + SERVER_BASE_PORT;
+        String listUUID = message.getListUUID();
+        if (n != hashRing.get().getReplicationFactor() || r != hashRing.get().getReadQuorum()) {
+            // reads with their own N or R are not shared with reads that asked for other ones
+            readList(message, n, r).thenAcceptAsync(response -> reply(client, response), workers);
+            return;
+        }
 
-        //create a socket to send the message to the server
-        try (ZContext context = new ZContext()) {
-            ZMQ.Socket socket = context.createSocket(SocketType.REQ);
-            socket.connect("tcp://localhost:" + serverPort);
+        CompletableFuture<String> created = new CompletableFuture<>();
+        CompletableFuture<String> read = inFlightReads.putIfAbsent(listUUID, created);
+        if (read == null) {
+            read = created;
+            readList(message, n, r).whenComplete((response, e) -> {
+                inFlightReads.remove(listUUID, created);
+                if (e != null) {
+                    System.out.println("Error reading list " + listUUID + ": " + e.getMessage());
+                    Message responseMessage = new Message();
+                    responseMessage.setMethod("error");
+                    response = responseMessage.toJson();
+                }
+                created.complete(response);
+            });
+        } else {
+            System.out.println("Joining read in flight for list " + listUUID);
+        }
 
-            socket.setReceiveTimeOut(1000);
+        read.thenAcceptAsync(response -> reply(client, response), workers);
+    }
+
+    // Reads a list from r of its n replicas, the future completes with the response for the client
+    private CompletableFuture<String> readList(Message message, int n, int r) {
+        HashRing ring = hashRing.get();
+        return readList(message, ring, n, r).thenCompose(response -> {
+            // nobody answered because the ring changed under the read, read again with the newer ring
+            HashRing current = hashRing.get();
+            return isError(response) && current != ring ? readList(message, current, n, r)
+                    : CompletableFuture.completedFuture(response);
+        });
+    }
+
+    private CompletableFuture<String> readList(Message message, HashRing ring, int n, int r) {
+        long readStart = System.currentTimeMillis();
+
+        // Create list of responsible servers, indexed by replication level
+        List<String> responsibleServers = getReplicas(ring, message.getListUUID(), n);
+        boolean[] ask = replicasToAsk(ring, message.getListUUID(), responsibleServers, r);
+        message.setRingEpoch(String.valueOf(ring.getEpoch()));
+        int quorumSize = Math.min(r, responsibleServers.size());
+
+        // Ask the replicas at once and answer as soon as r of them replied, replicas that are not asked count
+        // as not answering
+        Message[] responses = new Message[responsibleServers.size()];
+        int[] answered = {0};
+        for (boolean asked : ask) {
+            answered[0] += asked ? 0 : 1;
+        }
+        CompletableFuture<List<Message>> quorum = new CompletableFuture<>();
+        List<CompletableFuture<Void>> requests = new ArrayList<>();
+
+        for (int i = 0; i < responsibleServers.size(); i++) {
+            if (!ask[i]) {
+                continue;
+            }
+            String server = responsibleServers.get(i);
+            String virtualNode = HashRing.virtualNode(server);
+            int serverId = HashRing.serverId(server);
+
+            message.setVirtualnode(virtualNode);
 
             String messageToSend = message.toJson();
 
             System.out.println("Sending message to server: " + messageToSend);
 
-            socket.send(messageToSend.getBytes(ZMQ.CHARSET));
+            int replica = i;
+            requests.add(sendToServerAsync(serverId, messageToSend).thenAccept(responseMessage -> {
+                synchronized (responses) {
+                    if (responseMessage == null) {
+                        System.out.println("Server " + server + " did not respond");
+                    } else {
+                        System.out.println("Received response from server: " + responseMessage);
+                        responses[replica] = parseReply(responseMessage);
+                    }
+                    answered[0]++;
 
-            byte[] response = socket.recv();
+                    List<Message> replies = Arrays.stream(responses).filter(Objects::nonNull).toList();
+                    if (replies.size() >= quorumSize || answered[0] == responses.length) {
+                        quorum.complete(replies);
+                    }
+                }
+            }));
+        }
 
-            if (response == null) {
-                System.out.println("Server " + responsibleServer + " did not respond");
-                socket.close();
+        // once every replica answered or timed out, bring the stale ones up to date off the client's path
+        CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0])).thenRunAsync(() -> {
+            synchronized (responses) {
+                readRepair(ring, responsibleServers, responses);
+            }
+        }, workers);
+
+        return quorum.thenApplyAsync(replies -> {
+            if (replies.size() < quorumSize) {
+                // fewer replicas than asked for answered, the read fails instead of settling for fewer of them
                 Message responseMessage = new Message();
                 responseMessage.setMethod("error");
-                routerSocket.send(responseMessage.toJson().getBytes(ZMQ.CHARSET));
-                System.out.println("Sent error message to client");
-                return;
+
+                System.out.println("Read quorum of " + quorumSize + " not reached for list " + message.getListUUID()
+                        + ": " + replies.size() + " replies");
+                return responseMessage.toJson();
+            }
+
+            Message merged = mergeReplies(replies);
+            String response = merged.toJson();
+            if (merged.getListcontent() != null && r >= hashRing.get().getReadQuorum()) {
+                listCache.put(message.getListUUID(), response, readStart);
+            }
+            return response;
+        }, workers);
+    }
+
+    // Reads every list of the batch from a quorum of its replicas. The lists are grouped by the server holding each
+    // replica, so every server gets a single multiGetList with all the lists it has to read, and the batches are
+    // sent at once. The lists come back in the order they were asked for, lists nobody answered for as errors.
+    private void handleMultiGetList(Message message, byte[] client) {
+        long readStart = System.currentTimeMillis();
+        List<Message> lists = message.getLists();
+        int n = replicationFactor(message);
+        int r = readQuorum(message, n);
+
+        Message[] results = new Message[lists.size()];
+        List<List<String>> replicaServers = new ArrayList<>();
+        Message[][] responses = new Message[lists.size()][];
+
+        // servers' sub-batches, and for every entry the list and replica it reads
+        Map<Integer, List<Message>> batches = new LinkedHashMap<>();
+        Map<Integer, List<int[]>> batchEntries = new LinkedHashMap<>();
+
+        // the whole batch is routed against the same ring
+        HashRing ring = hashRing.get();
+        for (int i = 0; i < lists.size(); i++) {
+            String listUUID = lists.get(i).getListUUID();
+            String cachedResponse = r <= hashRing.get().getReadQuorum() ? listCache.get(listUUID) : null;
+            if (cachedResponse != null) {
+                results[i] = Message.fromJson(cachedResponse);
+                replicaServers.add(List.of());
+                responses[i] = new Message[0];
+                continue;
             }
 
-            String responseMessage = new String(response, ZMQ.CHARSET);
+            List<String> servers = getReplicas(ring, listUUID, n);
+            boolean[] ask = replicasToAsk(ring, listUUID, servers, r);
+            replicaServers.add(servers);
+            responses[i] = new Message[servers.size()];
 
-            System.out.println("Received response from server: " + responseMessage);
+            for (int j = 0; j < servers.size(); j++) {
+                if (!ask[j]) {
+                    continue;
+                }
+                String server = servers.get(j);
+                int serverId = HashRing.serverId(server);
 
-            socket.disconnect("tcp://localhost:" + serverPort);
+                Message entry = new Message();
+                entry.setListUUID(listUUID);
+                entry.setVirtualnode(HashRing.virtualNode(server));
 
-            routerSocket.send(responseMessage.getBytes(ZMQ.CHARSET));
+                batches.computeIfAbsent(serverId, key -> new ArrayList<>()).add(entry);
+                batchEntries.computeIfAbsent(serverId, key -> new ArrayList<>()).add(new int[]{i, j});
+            }
         }
-    }
 
+        CompletableFuture<Void> quorum = new CompletableFuture<>();
+        List<CompletableFuture<Void>> requests = new ArrayList<>();
+        int[] answered = {0};
+
+        for (Map.Entry<Integer, List<Message>> batch : batches.entrySet()) {
+            int serverId = batch.getKey();
+            List<int[]> entries = batchEntries.get(serverId);
+
+            Message request = new Message();
+            request.setMethod("multiGetList");
+            request.setLists(batch.getValue());
+            request.setRingEpoch(String.valueOf(ring.getEpoch()));
+
+            System.out.println("Sending " + entries.size() + " lists to server " + serverId);
+
+            requests.add(sendToServerAsync(serverId, request.toJson()).thenAccept(responseMessage -> {
+                synchronized (responses) {
+                    Message reply = responseMessage == null ? null : parseReply(responseMessage);
+                    if (reply == null || reply.getLists() == null || reply.getLists().size() != entries.size()) {
+                        System.out.println("Server " + serverId + " did not respond");
+                    } else {
+                        for (int k = 0; k < entries.size(); k++) {
+                            int[] entry = entries.get(k);
+                            responses[entry[0]][entry[1]] = reply.getLists().get(k);
+                        }
+                    }
+                    answered[0]++;
 
-    private void handleJoinHashRing(Message message) {
-        //sleep for 1 second
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+                    if (answered[0] == batches.size() || hasReadQuorum(responses, r)) {
+                        quorum.complete(null);
+                    }
+                }
+            }));
+        }
+        if (batches.isEmpty()) {
+            quorum.complete(null);
         }
-        addServerToHashRing(message.getServerId());
-        sendHashRingToServers("addServerToHashRing",Integer.parseInt(message.getServerId()),
-                virtualNodesPerServer);
+
+        // once every server answered or timed out, bring the stale replicas up to date off the client's path
+        CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0])).thenRunAsync(() -> {
+            synchronized (responses) {
+                for (int i = 0; i < responses.length; i++) {
+                    readRepair(ring, replicaServers.get(i), responses[i]);
+                }
+            }
+        }, workers);
+
+        quorum.thenAcceptAsync(ignored -> {
+            List<Message> merged = new ArrayList<>();
+            synchronized (responses) {
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i] == null) {
+                        results[i] = mergeBatchReplies(lists.get(i).getListUUID(), responses[i], r, readStart,
+                                r >= hashRing.get().getReadQuorum());
+                    }
+                    merged.add(results[i]);
+                }
+            }
+
+            Message responseMessage = new Message();
+            responseMessage.setMethod("multiGetList");
+            responseMessage.setLists(merged);
+            reply(client, responseMessage.toJson());
+        }, workers);
     }
 
-    private void handleLeaveHashRing(Message message) {
-        removeServerFromHashRing(message.getServerId());
-        sendHashRingToServers("removeServerFromHashRing",Integer.parseInt(message.getServerId()),
-                virtualNodesPerServer);
+    // True once every list of a batch read has r replies, lists served from the cache have no replicas
+    private boolean hasReadQuorum(Message[][] responses, int r) {
+        for (Message[] replicas : responses) {
+            long replies = Arrays.stream(replicas).filter(Objects::nonNull).count();
+            if (replies < Math.min(r, replicas.length)) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private void sendHashRingToServer(ZMQ.Socket routerSocket) {
-        Message responseMessage = new Message();
-        responseMessage.setMethod("createHashRing");
-        responseMessage.setHashRing(getHashRingAsString());
-        System.out.println("Sending message to client: " + responseMessage.toJson());
+    // Merges the replies for one list of a batch read, the list is an error if fewer than r replicas answered
+    private Message mergeBatchReplies(String listUUID, Message[] responses, int r, long readStart, boolean cache) {
+        List<Message> replies = Arrays.stream(responses).filter(Objects::nonNull).toList();
+        if (replies.isEmpty() || replies.size() < Math.min(r, responses.length)) {
+            System.out.println("Read quorum of " + r + " not reached for list " + listUUID);
+            Message error = new Message();
+            error.setMethod("error");
+            error.setListUUID(listUUID);
+            return error;
+        }
 
-        routerSocket.send(responseMessage.toJson().getBytes(ZMQ.CHARSET));
+        Message merged = mergeReplies(replies);
+        if (merged.getListcontent() != null && cache) {
+            listCache.put(listUUID, merged.toJson(), readStart);
+        }
+        return merged;
     }
 
-    public void addServerToHashRing(String serverId){
-        int serverIdInt = Integer.parseInt(serverId);
-        serverIds.add(serverIdInt);
-        for (int i = 1; i <= 3; i++) {
-            String serverNode = "S" + serverIdInt + "V" + i;
-            int hash = getSHA256Hash(serverNode) % 1000; // Modulo 100
-            hashRing.add(new Pair<>(serverNode, hash));
-        }
-        hashRing.sort(Comparator.comparingInt(Pair::right));
-    }
-
-    public void removeServerFromHashRing(String serverId){
-        Integer serverIdInt = Integer.parseInt(serverId);
-        //remove serverId from serverIds
-        serverIds.remove(serverIdInt);
-        for (int i = 1; i <= 3; i++) {
-            String serverNode = "S" + serverIdInt + "V" + i;
-            // find the pair with the serverNode
-            Pair<String, Integer> pairToRemove = null;
-            for (Pair<String, Integer> pair : hashRing) {
-                if (pair.left().equals(serverNode)) {
-                    pairToRemove = pair;
-                    break;
+    // Sends every list of the batch to its responsible server, with one multiUpdateList per server sent at once.
+    // The results come back in the order of the batch, lists whose server did not answer as errors.
+    private void handleMultiUpdateList(Message message, byte[] client) {
+        List<Message> lists = message.getLists();
+        int n = replicationFactor(message);
+        int w = writeQuorum(message, n);
+        Message[] results = new Message[lists.size()];
+
+        Map<Integer, List<Message>> batches = new LinkedHashMap<>();
+        Map<Integer, List<Integer>> batchIndexes = new LinkedHashMap<>();
+
+        // the whole batch is routed against the same ring
+        HashRing ring = hashRing.get();
+        for (int i = 0; i < lists.size(); i++) {
+            Message list = lists.get(i);
+            // same as a single update, see rerouteMessage
+            listCache.invalidate(list.getListUUID());
+            inFlightReads.remove(list.getListUUID());
+
+            String responsibleServer = getCoordinator(ring, list.getListUUID());
+            int serverId = HashRing.serverId(responsibleServer);
+            list.setVirtualnode(HashRing.virtualNode(responsibleServer));
+
+            batches.computeIfAbsent(serverId, key -> new ArrayList<>()).add(list);
+            batchIndexes.computeIfAbsent(serverId, key -> new ArrayList<>()).add(i);
+        }
+
+        List<CompletableFuture<Void>> requests = new ArrayList<>();
+        for (Map.Entry<Integer, List<Message>> batch : batches.entrySet()) {
+            int serverId = batch.getKey();
+            List<Integer> indexes = batchIndexes.get(serverId);
+
+            Message request = new Message();
+            request.setMethod("multiUpdateList");
+            request.setLists(batch.getValue());
+            request.setRingEpoch(String.valueOf(ring.getEpoch()));
+            request.setReplicationFactor(String.valueOf(n));
+            request.setWriteQuorum(String.valueOf(w));
+
+            System.out.println("Sending " + indexes.size() + " lists to server " + serverId);
+
+            requests.add(sendToServerAsync(serverId, request.toJson(), writeTimeout(w)).thenAccept(responseMessage -> {
+                Message reply = responseMessage == null ? null : parseReply(responseMessage);
+                boolean answered = reply != null && reply.getLists() != null && reply.getLists().size() == indexes.size();
+                if (!answered) {
+                    System.out.println("Server " + serverId + " did not respond");
                 }
-            }
-            hashRing.remove(pairToRemove);
+
+                synchronized (results) {
+                    for (int k = 0; k < indexes.size(); k++) {
+                        if (answered) {
+                            results[indexes.get(k)] = reply.getLists().get(k);
+                        } else {
+                            Message error = new Message();
+                            error.setMethod("error");
+                            error.setListUUID(lists.get(indexes.get(k)).getListUUID());
+                            results[indexes.get(k)] = error;
+                        }
+                    }
+                }
+            }));
         }
-        hashRing.sort(Comparator.comparingInt(Pair::right));
+
+        CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0])).thenRunAsync(() -> {
+            for (Message list : lists) {
+                listCache.invalidate(list.getListUUID());
+            }
+
+            Message responseMessage = new Message();
+            responseMessage.setMethod("multiUpdateList");
+            synchronized (results) {
+                responseMessage.setLists(Arrays.asList(results));
+            }
+            reply(client, responseMessage.toJson());
+        }, workers);
     }
 
-    public String getHashRingAsString() {
-        StringBuilder sb = new StringBuilder();
-        for (Pair<String, Integer> pair : hashRing) {
-            sb.append(pair.left()).append(",").append(pair.right()).append(":");
+    // Servers answer getList with a JSON message, anything else counts as no answer
+    private Message parseReply(String responseMessage) {
+        try {
+            return Message.fromJson(responseMessage);
+        } catch (JsonSyntaxException e) {
+            System.out.println("Invalid response from server: " + responseMessage);
+            return null;
         }
-        return sb.toString();
     }
 
-    public void sendHashRingToServers(String method,int newServerId,int numberOfVirtualNodes) {
-        try (ZContext context = new ZContext()) {
-            ZMQ.Socket socket = context.createSocket(SocketType.REQ);
+    // Sends the merged list to every replica that answered with an older copy or without the list
+    private void readRepair(HashRing ring, List<String> responsibleServers, Message[] responses) {
+        List<Message> replies = Arrays.stream(responses).filter(Objects::nonNull).toList();
+        if (replies.isEmpty()) {
+            return;
+        }
 
-            for (Integer serverId : serverIds) {
-                int serverPort = serverId + SERVER_BASE_PORT;
-                socket.connect("tcp://localhost:" + serverPort);
+        Message merged = mergeReplies(replies);
+        if (merged.getListcontent() == null) {
+            return;
+        }
 
-                Message message = new Message();
-                message.setMethod(method);
-                message.setHashRing(getHashRingAsString());
-                message.setServerId(String.valueOf(newServerId));
-                message.setNrVirtualNodes(String.valueOf(numberOfVirtualNodes));
+        for (int i = 0; i < responses.length; i++) {
+            // replicas that did not answer are repaired by a later read
+            if (responses[i] == null) {
+                continue;
+            }
+            if (responses[i].getListcontent() != null && JsonParser.parseString(responses[i].getListcontent())
+                    .equals(JsonParser.parseString(merged.getListcontent()))) {
+                continue;
+            }
 
-                System.out.println("Sending message to server: " + message.toJson());
+            String server = responsibleServers.get(i);
+            int serverId = HashRing.serverId(server);
 
-                socket.send(message.toJson().getBytes(ZMQ.CHARSET));
+            Message repair = new Message();
+            repair.setMethod("replicateList");
+            repair.setVirtualnode(HashRing.virtualNode(server));
+            repair.setListUUID(merged.getListUUID());
+            repair.setListname(merged.getListname());
+            repair.setListcontent(merged.getListcontent());
+            // the replicas are indexed by their level in the list's preference list
+            repair.setReplicationLevel(String.valueOf(i));
+            repair.setRingEpoch(String.valueOf(ring.getEpoch()));
 
-                byte[] response = socket.recv();
+            System.out.println("Repairing stale replica " + server + " of list " + merged.getListUUID());
 
-                String responseMessage = new String(response, ZMQ.CHARSET);
+            sendToServerAsync(serverId, repair.toJson());
+        }
+    }
 
-                System.out.println("Received response from server: " + responseMessage);
+    // Merges the copies of a list returned by its replicas, replicas that do not have the list are ignored
+    private Message mergeReplies(List<Message> replies) {
+        Message merged = new Message();
+        merged.setListUUID(replies.get(0).getListUUID());
 
-                socket.disconnect("tcp://localhost:" + serverPort);
+        CRDT.MapPNCounter mergedContent = null;
+        for (Message reply : replies) {
+            if (reply.getListcontent() == null) {
+                continue;
+            }
+            if (merged.getListname() == null) {
+                merged.setListname(reply.getListname());
             }
 
-            //for every server send deleteKeys message
-            for (Integer serverId : serverIds) {
-                int serverPort = serverId + SERVER_BASE_PORT;
-                socket.connect("tcp://localhost:" + serverPort);
+            CRDT.MapPNCounter content = CRDT.toMapPNCounter(reply.getListcontent());
+            mergedContent = mergedContent == null ? content : CRDT.MapPNCounter.merge(mergedContent, content);
+        }
 
-                Message message = new Message();
-                message.setMethod("deleteKeys");
+        if (mergedContent != null) {
+            merged.setListcontent(mergedContent.toJson());
+        }
+        return merged;
+    }
 
-                System.out.println("Sending message to server: " + message);
+    private void rerouteMessage(Message message, byte[] client) {
+        // invalidate before and after the write, so reads that overlap it are not cached either
+        // syncList writes the list too, and answers with what the coordinator had merged it with
+        boolean write = "updateList".equals(message.getMethod()) || "syncList".equals(message.getMethod());
+        if (write) {
+            listCache.invalidate(message.getListUUID());
+            // reads arriving from now on must not join a read that may have missed this write
+            inFlightReads.remove(message.getListUUID());
+        }
 
-                socket.send(message.toJson().getBytes(ZMQ.CHARSET));
+        // the coordinator stores the write on the request's N nodes, or the cluster's, and answers after W of them
+        int timeout = SERVER_TIMEOUT;
+        if (write) {
+            int n = replicationFactor(message);
+            int w = writeQuorum(message, n);
+            message.setReplicationFactor(String.valueOf(n));
+            message.setWriteQuorum(String.valueOf(w));
+            timeout = writeTimeout(w);
+        }
 
-                byte[] response = socket.recv();
+        HashRing ring = hashRing.get();
+        String responsibleServer = getCoordinator(ring, message.getListUUID());
+        String responseMessage = routeToServer(ring, responsibleServer, message, timeout);
 
-                String responseMessage = new String(response, ZMQ.CHARSET);
+        // the server had a newer ring, send the message again to the server that ring gives
+        HashRing current = hashRing.get();
+        if (responseMessage == null && current != ring) {
+            responsibleServer = getCoordinator(current, message.getListUUID());
+            responseMessage = routeToServer(current, responsibleServer, message, timeout);
+        }
 
-                System.out.println("Received response from server: " + responseMessage);
+        if (responseMessage == null) {
+            System.out.println("Server " + responsibleServer + " did not respond");
+            Message errorMessage = new Message();
+            errorMessage.setMethod("error");
+            reply(client, errorMessage.toJson());
+            System.out.println("Sent error message to client");
+            return;
+        }
 
-                socket.disconnect("tcp://localhost:" + serverPort);
+        System.out.println("Received response from server: " + responseMessage);
 
-            }
+        if (write) {
+            listCache.invalidate(message.getListUUID());
+        }
 
-            //send replicateKeys message
-            for (Integer serverId : serverIds) {
-                int serverPort = serverId + SERVER_BASE_PORT;
-                socket.connect("tcp://localhost:" + serverPort);
+        reply(client, responseMessage);
+    }
+
+
+    private String routeToServer(HashRing ring, String responsibleServer, Message message, int timeout) {
+        System.out.println("Responsible server: " + responsibleServer);
+
+        String virtualNode = HashRing.virtualNode(responsibleServer);
+        message.setVirtualnode(virtualNode);
+        message.setRingEpoch(String.valueOf(ring.getEpoch()));
+
+        int serverId = HashRing.serverId(responsibleServer);
+
+        String messageToSend = message.toJson();
+
+        System.out.println("Sending message to server: " + messageToSend);
+
+        return sendToServer(serverId, messageToSend, timeout);
+    }
+
+    // N of the request, the cluster's if it has none
+    private int replicationFactor(Message message) {
+        return Math.max(1, parseLevel(message.getReplicationFactor(), hashRing.get().getReplicationFactor()));
+    }
+
+    // R of the request, at most N
+    private int readQuorum(Message message, int n) {
+        return Math.min(n, Math.max(1, parseLevel(message.getReadQuorum(), hashRing.get().getReadQuorum())));
+    }
+
+    // W of the request, at most N
+    private int writeQuorum(Message message, int n) {
+        return Math.min(n, Math.max(1, parseLevel(message.getWriteQuorum(), hashRing.get().getWriteQuorum())));
+    }
 
-                Message message = new Message();
-                message.setMethod("replicateKeys");
+    private int parseLevel(String level, int defaultLevel) {
+        try {
+            return level == null ? defaultLevel : Integer.parseInt(level);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid consistency level " + level + ", using " + defaultLevel);
+            return defaultLevel;
+        }
+    }
+
+    // A write with W = 1 is answered as soon as the coordinator stored it
+    private int writeTimeout(int w) {
+        return w > 1 ? WRITE_TIMEOUT : SERVER_TIMEOUT;
+    }
+
+    private boolean isError(String response) {
+        Message message = parseReply(response);
+        return message != null && "error".equals(message.getMethod());
+    }
+
+    private void handleJoinHashRing(Message message, byte[] client) {
+        // the server declares how many virtual nodes it takes, so bigger servers own more of the ring. A server
+        // owning no node would be in the ring without any list, the join is refused.
+        int virtualNodes;
+        try {
+            Integer.parseInt(message.getServerId());
+            virtualNodes = message.getNrVirtualNodes() == null ? virtualNodesPerServer
+                    : Integer.parseInt(message.getNrVirtualNodes());
+        } catch (NumberFormatException e) {
+            virtualNodes = 0;
+        }
+        Message response = new Message();
+        if (virtualNodes < 1) {
+            System.out.println("Refusing join of server " + message.getServerId() + " with "
+                    + message.getNrVirtualNodes() + " virtual nodes");
+            response.setMethod("error");
+            response.setListcontent("Invalid server id or number of virtual nodes, it must be at least 1");
+            reply(client, response.toJson());
+            return;
+        }
+        response.setMethod("joinHashRing");
+        reply(client, response.toJson());
+
+        //sleep for 1 second
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        HashRing ring = addServerToHashRing(message.getServerId(), message.getAddress(), virtualNodes);
+        sendHashRingToServers(ring, "addServerToHashRing",Integer.parseInt(message.getServerId()),
+                virtualNodes, message.getAddress());
+    }
 
-                System.out.println("Sending message to server: " + message);
+    private void handleLeaveHashRing(Message message) {
+        int virtualNodes = hashRing.get().getVirtualNodes(Integer.parseInt(message.getServerId())).size();
+        HashRing ring = removeServerFromHashRing(message.getServerId());
+        sendHashRingToServers(ring, "removeServerFromHashRing",Integer.parseInt(message.getServerId()),
+                virtualNodes, null);
+    }
 
-                socket.send(message.toJson().getBytes(ZMQ.CHARSET));
+    private void sendHashRingToServer(Message message, byte[] client) {
+        // a server starting with the ring registers where it listens if that is not its default address
+        if (message.getServerId() != null && message.getAddress() != null) {
+            int serverId = Integer.parseInt(message.getServerId());
+            HashRing current = hashRing.get();
+            if (current.getServerIds().contains(serverId)
+                    && !current.getAddress(serverId).equals(message.getAddress())) {
+                changeHashRing(ring -> ring.withAddress(serverId, message.getAddress()),
+                        ring -> !ring.getServerIds().contains(serverId)
+                                || ring.getAddress(serverId).equals(message.getAddress()));
+            }
+        }
 
-                byte[] response = socket.recv();
+        Message responseMessage = new Message();
+        responseMessage.setMethod("createHashRing");
+        responseMessage.setHashRing(getHashRingAsString());
+        System.out.println("Sending message to client: " + responseMessage.toJson());
 
-                String responseMessage = new String(response, ZMQ.CHARSET);
+        reply(client, responseMessage.toJson());
+    }
 
-                System.out.println("Received response from server: " + responseMessage);
+    // Publishes the ring with the server added and returns it
+    public HashRing addServerToHashRing(String serverId, String address, int virtualNodes){
+        int serverIdInt = Integer.parseInt(serverId);
+        return changeHashRing(current -> current.withServer(serverIdInt, virtualNodes, address),
+                ring -> ring.getServerIds().contains(serverIdInt));
+    }
 
-                socket.disconnect("tcp://localhost:" + serverPort);
+    // Publishes the ring with the server removed and returns it
+    public HashRing removeServerFromHashRing(String serverId){
+        int serverIdInt = Integer.parseInt(serverId);
+        return changeHashRing(current -> current.withoutServer(serverIdInt),
+                ring -> !ring.getServerIds().contains(serverIdInt));
+    }
 
+    // Applies a change to the ring and swaps the new ring with every other router before returning it. Another
+    // router changing the ring at the same time builds a different ring of the same epoch and only one of them is
+    // kept everywhere, so the router whose ring was dropped applies its change again on top of the one kept,
+    // instead of sending the servers a ring the others do not have. applied tells whether a ring has the change.
+    private HashRing changeHashRing(UnaryOperator<HashRing> change, Predicate<HashRing> applied) {
+        while (true) {
+            HashRing ring = hashRing.updateAndGet(change);
+            pushHashRing();
+
+            HashRing current = hashRing.get();
+            if (current == ring || current.getEpoch() > ring.getEpoch() && applied.test(current)) {
+                return ring;
             }
-            System.out.println("Hash ring sent to all servers");
+            System.out.println("Hash ring of epoch " + ring.getEpoch() + " lost to a concurrent change, applying "
+                    + "the change again on epoch " + current.getEpoch());
         }
     }
 
-    public String getNextNode(String node) {
-        // find node in hash ring
-        int index = 0;
-        for (Pair<String, Integer> pair : hashRing) {
-            if (pair.left().equals(node)) {
-                break;
+    public String getHashRingAsString() {
+        return hashRing.get().toString();
+    }
+
+    // Keeps the given ring if it is newer than the current one, returns whether it was kept
+    private boolean adoptHashRing(HashRing ring) {
+        HashRing previous = hashRing.getAndAccumulate(ring, HashRing::newest);
+        if (previous == ring || HashRing.newest(previous, ring) != ring) {
+            return false;
+        }
+        System.out.println("Adopted hash ring of epoch " + ring.getEpoch() + ", was at epoch "
+                + previous.getEpoch());
+        return true;
+    }
+
+    private void handleSyncHashRing(Message message, byte[] client) {
+        if (message.getHashRing() != null) {
+            adoptHashRing(HashRing.fromString(message.getHashRing()));
+        }
+
+        Message responseMessage = new Message();
+        responseMessage.setMethod("syncHashRing");
+        responseMessage.setHashRing(getHashRingAsString());
+        reply(client, responseMessage.toJson());
+    }
+
+    // Swaps the ring with every other router in turn, after this router changed it
+    private void pushHashRing() {
+        for (int routerPort : ROUTER_PORTS) {
+            if (routerPort != ROUTER_BASE_PORT + id) {
+                syncHashRing(routerPort);
             }
-            index++;
         }
+    }
 
-        // get the next node in the hash ring
-        return hashRing.get((index + 1) % hashRing.size()).left();
+    // One gossip round: swaps rings with another router picked at random, so a router that missed a push, or was
+    // down when it was sent, catches up within a few rounds
+    private void gossipHashRing() {
+        List<Integer> peers = ROUTER_PORTS.stream().filter(port -> port != ROUTER_BASE_PORT + id).toList();
+        if (!peers.isEmpty()) {
+            syncHashRing(peers.get(ThreadLocalRandom.current().nextInt(peers.size())));
+        }
     }
 
-    public String getPreviousNode(String node) {
-        // find node in hash ring
-        int index = 0;
-        for (Pair<String, Integer> pair : hashRing) {
-            if (pair.left().equals(node)) {
-                break;
+    // Sends this router's ring to another router, which answers with the newer of the two, and keeps that one
+    private void syncHashRing(int routerPort) {
+        Message message = new Message();
+        message.setMethod("syncHashRing");
+        message.setHashRing(getHashRingAsString());
+
+        ZMQ.Socket socket = context.createSocket(SocketType.REQ);
+        try {
+            socket.setLinger(0);
+            socket.setReceiveTimeOut(ROUTER_TIMEOUT);
+            socket.connect("tcp://localhost:" + routerPort);
+            socket.send(message.toJson());
+
+            String response = socket.recvStr();
+            Message reply = response == null ? null : parseReply(response);
+            if (reply != null && reply.getHashRing() != null) {
+                adoptHashRing(HashRing.fromString(reply.getHashRing()));
             }
-            index++;
+        } finally {
+            socket.close();
         }
+    }
 
-        // get the previous node in the hash ring
-        int size = hashRing.size();
-        return hashRing.get((index + size - 1) % size).left();
+    // Tells every server of the ring about a membership change, in three phases: the ring update itself (on which
+    // the servers hand over the lists whose owner changed), deleteKeys and replicateKeys.
+    // The ring update only carries the change and the epoch it builds, and a server that is not on the previous
+    // epoch answers staleRing and gets the whole ring instead. Every phase is sent to all servers at once, a server
+    // gets the next phase as soon as it acknowledged the previous one, and the next phase starts once a majority of
+    // the servers acknowledged, so one slow or dead server does not hold up the change. A joining server must be
+    // in that majority: the others delete the lists they hand over to it on deleteKeys, so it has to have fetched
+    // them first.
+    public void sendHashRingToServers(HashRing ring, String method,int newServerId,int numberOfVirtualNodes,
+                                      String address) {
+        Set<Integer> serverIds = ring.getServerIds();
+        int quorum = serverIds.size() / 2 + 1;
+        boolean join = serverIds.contains(newServerId);
+
+        Message update = new Message();
+        update.setMethod(method);
+        update.setServerId(String.valueOf(newServerId));
+        update.setNrVirtualNodes(String.valueOf(numberOfVirtualNodes));
+        update.setAddress(address);
+        update.setRingEpoch(String.valueOf(ring.getEpoch()));
+
+        Message deleteKeys = new Message();
+        deleteKeys.setMethod("deleteKeys");
+
+        Message replicateKeys = new Message();
+        replicateKeys.setMethod("replicateKeys");
+
+        Map<Integer, CompletableFuture<Boolean>> acknowledged = new LinkedHashMap<>();
+        for (Integer serverId : serverIds) {
+            acknowledged.put(serverId, CompletableFuture.completedFuture(true));
+        }
+
+        for (Message phase : List.of(update, deleteKeys, replicateKeys)) {
+            System.out.println("Sending " + phase.getMethod() + " to servers " + serverIds);
+
+            CompletableFuture<Void> phaseQuorum = new CompletableFuture<>();
+            int[] answers = {0, 0}; // acknowledged, answered or failed
+            boolean[] joinAcknowledged = {!join};
+
+            for (Integer serverId : serverIds) {
+                CompletableFuture<Boolean> previous = acknowledged.get(serverId);
+                CompletableFuture<Boolean> current = previous.thenCompose(ok -> ok
+                        ? sendMembershipPhase(ring, serverId, phase)
+                        : CompletableFuture.completedFuture(false));
+                acknowledged.put(serverId, current);
+
+                current.thenAccept(ok -> {
+                    synchronized (answers) {
+                        answers[0] += ok ? 1 : 0;
+                        answers[1]++;
+                        if (serverId == newServerId && ok) {
+                            joinAcknowledged[0] = true;
+                        }
+                        if (answers[0] >= quorum && joinAcknowledged[0] || answers[1] == serverIds.size()) {
+                            phaseQuorum.complete(null);
+                        }
+                    }
+                });
+            }
+
+            phaseQuorum.join();
+            synchronized (answers) {
+                System.out.println(phase.getMethod() + " acknowledged by " + answers[0] + " of " + serverIds.size()
+                        + " servers");
+                // deleteKeys drops the lists the servers handed over, it is only sent once the joining server and
+                // a majority took the new ring
+                if (phase == update && (answers[0] < quorum || !joinAcknowledged[0])) {
+                    System.out.println("Hash ring of epoch " + ring.getEpoch() + " not acknowledged by "
+                            + (joinAcknowledged[0] ? "a majority of the servers" : "server " + newServerId)
+                            + ", stopping before deleteKeys");
+                    return;
+                }
+            }
+        }
+        System.out.println("Hash ring of epoch " + ring.getEpoch() + " sent to servers");
     }
 
+    // Sends one phase of a membership change to a server, the future completes with whether it acknowledged it
+    private CompletableFuture<Boolean> sendMembershipPhase(HashRing ring, int serverId, Message phase) {
+        String endpoint = ring.getEndpoint(serverId);
+        return membershipConnections.send(endpoint, phase.toJson(), MEMBERSHIP_TIMEOUT).thenCompose(response -> {
+            if (response == null) {
+                System.out.println("Server " + serverId + " did not acknowledge " + phase.getMethod());
+                return CompletableFuture.completedFuture(false);
+            }
+            // deleteKeys and replicateKeys are acknowledged with plain text
+            Message reply = response.startsWith("{") ? parseReply(response) : null;
+            if (reply != null && "staleRing".equals(reply.getMethod())) {
+                System.out.println("Server " + serverId + " is on ring epoch " + reply.getRingEpoch()
+                        + ", sending the whole ring");
+                Message fullUpdate = Message.fromJson(phase.toJson());
+                fullUpdate.setHashRing(ring.toString());
+                return membershipConnections.send(endpoint, fullUpdate.toJson(), MEMBERSHIP_TIMEOUT)
+                        .thenApply(Objects::nonNull);
+            }
+            if (reply != null && "error".equals(reply.getMethod())) {
+                System.out.println("Server " + serverId + " failed " + phase.getMethod());
+                return CompletableFuture.completedFuture(false);
+            }
+            System.out.println("Received response from server: " + response);
+            return CompletableFuture.completedFuture(true);
+        });
+    }
 
     public static void main(String[] args) {
 
-        if (args.length != 1) {
-            System.out.println("Usage: java -jar build/libs/router.jar <id>");
+        if (args.length < 1) {
+            System.out.println("Usage: java -jar build/libs/router.jar <id> [murmur3|xxhash64]");
             return;
         }
 
@@ -423,13 +1272,27 @@ public class Router {
             return;
         }
 
-        int numberOfServers = 4; // Change this to the desired number of servers
-        int virtualNodesPerServer = 3; // Change this to the desired number of virtual nodes per server
+        // every router must use the same function, the servers take it from the ring they receive
+        RingHashFunction hashFunction;
+        try {
+            hashFunction = RingHashFunction.forName(args.length > 1 ? args[1] : RingHashFunction.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
 
-        Router router = new Router(id,numberOfServers, virtualNodesPerServer);
+        int numberOfServers = 4; // Change this to the desired number of servers
+        int virtualNodesPerServer = 3; // Change this to the default number of virtual nodes per server
+        // N, R and W reach the servers and smart clients with the ring, every router must use the same ones
+        int replicationFactor = 3; // Change this to the desired number of nodes keeping every list
+        int readQuorum = 2; // Change this to the desired number of replicas that must answer a read
+        int writeQuorum = 1; // Change this to the desired number of nodes that must store a write before its answer
+        int cacheCapacity = 1000; // Change this to the desired number of lists cached by the router (0 disables it)
+        long cacheMaxStaleness = 1000; // Change this to the desired maximum age in ms of a cached list
+        double loadFactor = 0; // Change this to cap the load of a server at this times the average (0 disables it)
+
+        Router router = new Router(id,numberOfServers, virtualNodesPerServer, replicationFactor, readQuorum,
+                writeQuorum, hashFunction, cacheCapacity, cacheMaxStaleness, loadFactor);
         router.startRouter();
     }
-
-    record Pair<L, R>(L left, R right) {
-    }
 }
@@ -0,0 +1,220 @@
+package sdle.router;
+
+import org.zeromq.SocketType;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+import org.zeromq.ZMsg;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps one long-lived DEALER socket per server endpoint and multiplexes every request sent to that server over it.
+// Each request is tagged with an id frame that the server's socket echoes back, so replies can arrive in any order
+// and a reply that never comes does not leave the socket stuck like a REQ socket would.
+public class ServerConnectionPool {
+    private static final String REQUESTS_ENDPOINT = "inproc://server-connection-pool-";
+
+    private static final AtomicInteger POOLS = new AtomicInteger();
+
+    // how often the I/O thread wakes up to expire requests that timed out
+    private static final int SWEEP_INTERVAL = 50;
+
+    private static final int RECONNECT_INTERVAL = 100;
+
+    private static final int RECONNECT_INTERVAL_MAX = 2000;
+
+    private final ZContext context;
+
+    private final String requestsEndpoint;
+
+    private final AtomicLong nextRequestId = new AtomicLong();
+
+    private final Map<Long, PendingRequest> pending = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<ZMQ.Socket> requestSockets;
+
+    private final Thread ioThread;
+
+    public ServerConnectionPool(ZContext context) {
+        this.context = context;
+        this.requestsEndpoint = REQUESTS_ENDPOINT + POOLS.incrementAndGet();
+
+        // bind before any caller can connect to the inproc endpoint
+        ZMQ.Socket requests = context.createSocket(SocketType.PULL);
+        requests.bind(requestsEndpoint);
+
+        requestSockets = ThreadLocal.withInitial(() -> {
+            ZMQ.Socket socket = context.createSocket(SocketType.PUSH);
+            socket.connect(requestsEndpoint);
+            return socket;
+        });
+
+        ioThread = new Thread(() -> run(requests), "server-connection-pool");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    // Sends a request to the server at the given endpoint, the future completes with null if it does not reply in time
+    public CompletableFuture<String> send(String endpoint, String request, long timeout) {
+        long requestId = nextRequestId.incrementAndGet();
+        PendingRequest pendingRequest = new PendingRequest(System.currentTimeMillis() + timeout);
+        pending.put(requestId, pendingRequest);
+
+        ZMsg message = new ZMsg();
+        message.add(endpoint);
+        message.add(String.valueOf(requestId));
+        message.add(request);
+        message.send(requestSockets.get());
+
+        return pendingRequest.future;
+    }
+
+    // Same as send but waits for the reply, returns null if the server did not respond in time
+    public String request(String endpoint, String request, long timeout) {
+        try {
+            return send(endpoint, request, timeout).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    public void close() {
+        ioThread.interrupt();
+    }
+
+    private void run(ZMQ.Socket requests) {
+        Map<String, ZMQ.Socket> connections = new HashMap<>();
+        List<String> polledEndpoints = new ArrayList<>();
+        ZMQ.Poller poller = null;
+        boolean connectionsChanged = true;
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // sockets are opened lazily, so the poller is rebuilt whenever a new one is added
+                if (connectionsChanged) {
+                    if (poller != null) {
+                        poller.close();
+                    }
+                    poller = context.createPoller(connections.size() + 1);
+                    poller.register(requests, ZMQ.Poller.POLLIN);
+                    polledEndpoints = new ArrayList<>(connections.keySet());
+                    for (String endpoint : polledEndpoints) {
+                        poller.register(connections.get(endpoint), ZMQ.Poller.POLLIN);
+                    }
+                    connectionsChanged = false;
+                }
+
+                if (poller.poll(SWEEP_INTERVAL) < 0) {
+                    break;
+                }
+
+                // replies first, the sockets they arrived on are the ones registered in this poller
+                for (int i = 0; i < polledEndpoints.size(); i++) {
+                    if (poller.pollin(i + 1)) {
+                        receiveReplies(connections.get(polledEndpoints.get(i)));
+                    }
+                }
+
+                if (poller.pollin(0)) {
+                    ZMsg message;
+                    while ((message = ZMsg.recvMsg(requests, ZMQ.DONTWAIT)) != null) {
+                        String endpoint = message.popString();
+                        String requestId = message.popString();
+                        String request = message.popString();
+                        message.destroy();
+
+                        ZMQ.Socket socket = connections.get(endpoint);
+                        if (socket == null) {
+                            socket = connect(endpoint);
+                            connections.put(endpoint, socket);
+                            connectionsChanged = true;
+                        }
+
+                        // never blocks: once the queue to a server that is down is full the request fails right
+                        // away, instead of holding up the requests to every other server
+                        boolean sent = socket.send(requestId, ZMQ.SNDMORE | ZMQ.DONTWAIT)
+                                && socket.send("", ZMQ.SNDMORE | ZMQ.DONTWAIT)
+                                && socket.send(request, ZMQ.DONTWAIT);
+                        if (!sent) {
+                            complete(Long.parseLong(requestId), null);
+                        }
+                    }
+                }
+
+                // a DEALER socket has no request state to reset, so only the late request is failed and its reply
+                // is dropped if it ever comes
+                expireRequests();
+            }
+        } catch (ZMQException e) {
+            // the context was closed
+        } finally {
+            pending.values().forEach(pendingRequest -> pendingRequest.future.complete(null));
+            pending.clear();
+        }
+    }
+
+    private ZMQ.Socket connect(String endpoint) {
+        ZMQ.Socket socket = context.createSocket(SocketType.DEALER);
+        socket.setLinger(0);
+        socket.setReconnectIVL(RECONNECT_INTERVAL);
+        socket.setReconnectIVLMax(RECONNECT_INTERVAL_MAX);
+        socket.connect(endpoint);
+        return socket;
+    }
+
+    private void receiveReplies(ZMQ.Socket socket) {
+        ZMsg reply;
+        while ((reply = ZMsg.recvMsg(socket, ZMQ.DONTWAIT)) != null) {
+            String requestId = reply.popString();
+            reply.pop(); // empty delimiter
+            String response = reply.popString();
+            reply.destroy();
+
+            try {
+                // replies to requests that already timed out are simply dropped
+                complete(Long.parseLong(requestId), response);
+            } catch (NumberFormatException e) {
+                System.out.println("Dropping malformed reply: " + response);
+            }
+        }
+    }
+
+    private void complete(long requestId, String response) {
+        PendingRequest pendingRequest = pending.remove(requestId);
+        if (pendingRequest != null) {
+            pendingRequest.future.complete(response);
+        }
+    }
+
+    // Fails the requests whose deadline passed, the others waiting on the same server keep their own deadlines
+    private void expireRequests() {
+        long now = System.currentTimeMillis();
+        pending.values().removeIf(pendingRequest -> {
+            if (pendingRequest.deadline > now) {
+                return false;
+            }
+            pendingRequest.future.complete(null);
+            return true;
+        });
+    }
+
+    private static class PendingRequest {
+        private final long deadline;
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+
+        PendingRequest(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+}
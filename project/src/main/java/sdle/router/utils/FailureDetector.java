@@ -0,0 +1,152 @@
+package sdle.router.utils;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+
+// Phi accrual failure detector shared by the routers and the servers.
+// Every server is probed in the background, and the time since its last answer is compared with the usual time
+// between answers: the suspicion level phi grows the longer a server stays silent, and the server is suspected
+// once it goes over the threshold. A request that timed out suspects the server right away, and the next
+// answered probe clears it, so a dead server costs one timeout instead of one per request.
+public class FailureDetector {
+
+    // probe intervals remembered per server
+    private static final int WINDOW_SIZE = 100;
+
+    private static final double LOG10_E = Math.log10(Math.E);
+
+    private final IntPredicate probe;
+
+    private final Supplier<Collection<Integer>> servers;
+
+    private final long probeInterval;
+
+    private final double threshold;
+
+    private final Map<Integer, History> histories = new ConcurrentHashMap<>();
+
+    private final Set<Integer> probing = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(daemon());
+
+    private final ExecutorService probes = Executors.newCachedThreadPool(daemon());
+
+    // probe sends a ping to the server with the given id and returns whether it answered in time,
+    // servers lists the ids of the servers to watch and is asked again on every round
+    public FailureDetector(IntPredicate probe, Supplier<Collection<Integer>> servers, long probeInterval,
+                           double threshold) {
+        this.probe = probe;
+        this.servers = servers;
+        this.probeInterval = probeInterval;
+        this.threshold = threshold;
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::probeServers, 0, probeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+        probes.shutdownNow();
+    }
+
+    // Servers that never answered a probe are not suspected until a request to them times out
+    public boolean isAvailable(int serverId) {
+        History history = histories.get(serverId);
+        return history == null || history.phi(System.currentTimeMillis()) < threshold;
+    }
+
+    public double phi(int serverId) {
+        History history = histories.get(serverId);
+        return history == null ? 0 : history.phi(System.currentTimeMillis());
+    }
+
+    // Called when a request sent to the server at the given time timed out. A server that answered a probe since
+    // then is slow rather than down, and is left to its probes
+    public void suspect(int serverId, long sentAt) {
+        histories.computeIfAbsent(serverId, server -> new History()).suspect(sentAt);
+    }
+
+    public void heartbeat(int serverId) {
+        histories.computeIfAbsent(serverId, server -> new History()).heartbeat(System.currentTimeMillis());
+    }
+
+    private void probeServers() {
+        Collection<Integer> watched = servers.get();
+        histories.keySet().retainAll(watched);
+
+        for (int serverId : watched) {
+            // a server that is slow to answer keeps its probe, it is not sent another one
+            if (!probing.add(serverId)) {
+                continue;
+            }
+            probes.submit(() -> {
+                try {
+                    if (probe.test(serverId)) {
+                        heartbeat(serverId);
+                    }
+                } finally {
+                    probing.remove(serverId);
+                }
+            });
+        }
+    }
+
+    private static ThreadFactory daemon() {
+        return runnable -> {
+            Thread thread = new Thread(runnable, "failure-detector");
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private class History {
+        private final ArrayDeque<Long> intervals = new ArrayDeque<>();
+        private long intervalsSum = 0;
+        private long lastHeartbeat = -1;
+        private boolean suspected = false;
+
+        synchronized void heartbeat(long now) {
+            // the silence of a server that was down says nothing about how often it answers
+            if (lastHeartbeat >= 0 && phi(now) < threshold) {
+                long interval = now - lastHeartbeat;
+                intervals.addLast(interval);
+                intervalsSum += interval;
+                if (intervals.size() > WINDOW_SIZE) {
+                    intervalsSum -= intervals.removeFirst();
+                }
+            }
+            lastHeartbeat = now;
+            suspected = false;
+        }
+
+        synchronized void suspect(long sentAt) {
+            if (lastHeartbeat < sentAt) {
+                suspected = true;
+            }
+        }
+
+        // Probes are answered about once per interval, so the time between answers is taken as exponentially
+        // distributed and phi is -log10 of the chance of going this long without one
+        synchronized double phi(long now) {
+            if (suspected) {
+                return Double.POSITIVE_INFINITY;
+            }
+            if (lastHeartbeat < 0) {
+                return 0;
+            }
+            double mean = intervals.isEmpty() ? probeInterval : (double) intervalsSum / intervals.size();
+            return (now - lastHeartbeat) / Math.max(mean, 1) * LOG10_E;
+        }
+    }
+}
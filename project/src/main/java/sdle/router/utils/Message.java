@@ -2,6 +2,8 @@ package sdle.router.utils;
 
 import com.google.gson.Gson;
 
+import java.util.List;
+
 public class Message {
     private String method;
     private String virtualnode;
@@ -16,6 +18,21 @@ public class Message {
 
     private String hintedHandoff;
 
+    // entries of a multiGetList / multiUpdateList batch
+    private List<Message> lists;
+
+    // host:port the server listens on, sent when it joins the hash ring
+    private String address;
+
+    // epoch of the hash ring the message was routed with or that a ring update builds
+    private String ringEpoch;
+
+    // N, R and W asked for by the request, the cluster's when not given: how many nodes keep the list, how many of
+    // them must answer a read and how many must have stored a write before it is acknowledged
+    private String replicationFactor;
+    private String readQuorum;
+    private String writeQuorum;
+
     // Constructor
     public Message() {
         this.method = null;
@@ -29,6 +46,12 @@ public class Message {
         this.nrVirtualNodes = null;
         this.keys = null;
         this.hintedHandoff = null;
+        this.lists = null;
+        this.address = null;
+        this.ringEpoch = null;
+        this.replicationFactor = null;
+        this.readQuorum = null;
+        this.writeQuorum = null;
     }
 
     // Getters and Setters (optional)
@@ -120,6 +143,54 @@ public class Message {
         this.hintedHandoff = hintedHandoff;
     }
 
+    public List<Message> getLists() {
+        return lists;
+    }
+
+    public void setLists(List<Message> lists) {
+        this.lists = lists;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public void setAddress(String address) {
+        this.address = address;
+    }
+
+    public String getRingEpoch() {
+        return ringEpoch;
+    }
+
+    public void setRingEpoch(String ringEpoch) {
+        this.ringEpoch = ringEpoch;
+    }
+
+    public String getReplicationFactor() {
+        return replicationFactor;
+    }
+
+    public void setReplicationFactor(String replicationFactor) {
+        this.replicationFactor = replicationFactor;
+    }
+
+    public String getReadQuorum() {
+        return readQuorum;
+    }
+
+    public void setReadQuorum(String readQuorum) {
+        this.readQuorum = readQuorum;
+    }
+
+    public String getWriteQuorum() {
+        return writeQuorum;
+    }
+
+    public void setWriteQuorum(String writeQuorum) {
+        this.writeQuorum = writeQuorum;
+    }
+
     // Serialize to JSON using Gson
     public String toJson() {
         Gson gson = new Gson();
@@ -147,6 +218,12 @@ public class Message {
                 ", nrVirtualNodes='" + nrVirtualNodes + '\'' +
                 ", keys='" + keys + '\'' +
                 ", hintedHandoff='" + hintedHandoff + '\'' +
+                ", lists=" + lists +
+                ", address='" + address + '\'' +
+                ", ringEpoch='" + ringEpoch + '\'' +
+                ", replicationFactor='" + replicationFactor + '\'' +
+                ", readQuorum='" + readQuorum + '\'' +
+                ", writeQuorum='" + writeQuorum + '\'' +
                 '}';
     }
 }
@@ -1,51 +1,154 @@
     package sdle.server;
     
-    import java.nio.charset.StandardCharsets;
-    import java.security.MessageDigest;
-    import java.security.NoSuchAlgorithmException;
     import java.sql.*;
+    import java.util.ArrayDeque;
     import java.util.ArrayList;
+    import java.util.Deque;
+    import java.util.HashSet;
+    import java.util.LinkedHashMap;
     import java.util.List;
+    import java.util.Map;
+    import java.util.Set;
     import java.util.concurrent.*;
+    import java.util.concurrent.atomic.AtomicReference;
+    import java.util.concurrent.locks.ReentrantLock;
     
+    import com.google.gson.JsonParseException;
+    import com.google.gson.JsonParser;
     import org.zeromq.SocketType;
     import org.zeromq.ZMQ;
     import org.zeromq.ZContext;
-    import sdle.router.Router;
+    import org.zeromq.ZFrame;
+    import org.zeromq.ZMsg;
     import sdle.server.utils.CRDT;
+    import sdle.server.utils.ConnectionPool;
+    import sdle.server.utils.FailureDetector;
+    import sdle.server.utils.HashRing;
     import sdle.server.utils.Message;
+    import sdle.server.utils.ServerConnectionPool;
     
     import static sdle.server.utils.CRDT.toMapPNCounter;
     
     public class Server {
     
-        private static List<Server.Pair<String, Integer>> hashRing = null;
-    
-        private static final int SERVER_BASE_PORT = 5000;
+        // the newest ring this server got, handler threads publish new rings instead of changing it, and each
+        // request reads it once and works on that snapshot
+        private static final AtomicReference<HashRing> hashRing = new AtomicReference<>();
     
         private static final List<Integer> ROUTER_PORTS = new ArrayList<>(List.of(6001, 6002, 6003));
+
+        // replies produced by the worker threads are handed back to the poller loop through this endpoint,
+        // so that only the loop thread ever touches the ROUTER socket
+        private static final String REPLIES_ENDPOINT = "inproc://server-replies";
+
+        private static ThreadLocal<ZMQ.Socket> replySockets;
+
+        // the handlers mostly wait on the database and on other servers, so there are more workers than cores,
+        // and many more when they are virtual threads, which cost little while they wait
+        private static final int PLATFORM_WORKERS = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+
+        private static final int VIRTUAL_WORKERS = 256;
+
+        // requests waiting for a worker, the ones that arrive when it is full are answered busy right away
+        private static final int DEFAULT_QUEUE_DEPTH = 1024;
+
+        // requests the routers route with their ring, checked against the epoch of this server's ring
+        private static final Set<String> ROUTED_METHODS = Set.of("updateList", "syncList", "getList",
+                "multiUpdateList", "multiGetList", "replicateList");
+
+        // how often the other servers are pinged, and the phi over which one that stopped answering is suspected
+        private static final int PROBE_INTERVAL = 250;
+
+        private static final double PHI_THRESHOLD = 8;
+
+        private static final int PING_TIMEOUT = 1000;
+
+        // how often replicas kept for other servers are handed back to them
+        private static final int HANDOFF_INTERVAL = 2000;
+
+        private static FailureDetector failureDetector;
+
+        // tells the routers, and through them the subscribed clients, about every list that changed
+        private static ZMQ.Socket publisher;
+
+        // how long a write waits for W copies before the coordinator answers that the quorum was not reached,
+        // below the routers' timeout for writes. Replication goes on after that.
+        private static final int WRITE_QUORUM_TIMEOUT = 1500;
+
+        // how far down the preference list replacements are looked for, and how long a replica has to answer
+        // before it is replaced
+        private static final int MAX_REPLICATION_NODES = 10;
+
+        private static final int REPLICATION_TIMEOUT = 1000;
+
+        // how long a joining server waits for the lists it takes over, below the routers' timeout for a membership
+        // phase so the router gets its answer
+        private static final int MEMBERSHIP_TIMEOUT = 5000;
+
+        // long-lived connections to the other servers, shared by the replication of every write
+        private static ServerConnectionPool serverConnections;
+
+        // runs the replication of every list of a batch at once, so the batch waits for its slowest list and not
+        // for the sum of them
+        private static ExecutorService replications;
+
+        // connections to this server's database, shared by the handler threads
+        private static final int DATABASE_CONNECTIONS = 4;
+
+        private static ConnectionPool database;
+
+        // merges of the same list run one at a time: two read-merge-writes of a row crossing each other would
+        // drop one of the updates. Lists share a fixed number of locks.
+        private static final ReentrantLock[] listLocks = createListLocks(64);
     
         public static void main(String[] args) {
     
             if (args.length < 1) {
-                System.out.println("Usage: java -jar build/libs/server.jar <id> [joinHashRing]");
+                System.out.println("Usage: java -jar build/libs/server.jar <id> [joinHashRing [virtualNodes]] "
+                        + "[host:port] [queue=<depth>]");
                 return;
             }
     
             int id, port;
             boolean joinHashRing = false;
+            // where the other nodes reach this server, registered in the hash ring
+            String address = null;
+            // how many virtual nodes the server asks for when it joins, the router's default if not given
+            String virtualNodes = null;
+            int queueDepth = DEFAULT_QUEUE_DEPTH;
             try {
                 id = Integer.parseInt(args[0]);
-                if (args.length > 1 && args[1].equals("joinHashRing")) {
-                    joinHashRing = true;
+                for (int i = 1; i < args.length; i++) {
+                    if (args[i].equals("joinHashRing")) {
+                        joinHashRing = true;
+                    } else if (args[i].startsWith("queue=")) {
+                        queueDepth = Integer.parseInt(args[i].substring("queue=".length()));
+                        if (queueDepth < 1) {
+                            throw new NumberFormatException();
+                        }
+                    } else if (args[i].contains(":")) {
+                        address = args[i];
+                    } else {
+                        virtualNodes = String.valueOf(Integer.parseInt(args[i]));
+                        if (Integer.parseInt(virtualNodes) < 1) {
+                            throw new NumberFormatException();
+                        }
+                    }
+                }
+                if (address == null) {
+                    address = HashRing.defaultAddress(id);
+                }
+                // the servers of the initial ring all have the router's number of virtual nodes
+                if (virtualNodes != null && !joinHashRing) {
+                    System.out.println("The number of virtual nodes can only be given when joining the hash ring");
+                    return;
                 }
+                port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
             } catch (NumberFormatException e) {
-                System.out.println("Invalid id number");
+                System.out.println("Invalid id number, address, number of virtual nodes or queue depth");
                 return;
             }
     
-            port = 5000 + id;
-    
             try (ZContext context = new ZContext()) {
                 ZMQ.Socket routerSocket = null;
     
@@ -87,19 +190,55 @@
                     return;
                 }
     
-                ZMQ.Socket socket = context.createSocket(SocketType.REP);
-                socket.bind("tcp://*:" + port);
+                // ROUTER frontend: every request carries the envelope of the node that sent it, so the workers
+                // can answer requests in any order and each reply is routed back to its own sender
+                ZMQ.Socket frontend = context.createSocket(SocketType.ROUTER);
+                frontend.bind("tcp://*:" + port);
+
+                ZMQ.Socket replies = context.createSocket(SocketType.PULL);
+                replies.bind(REPLIES_ENDPOINT);
+
+                replySockets = ThreadLocal.withInitial(() -> {
+                    ZMQ.Socket socket = context.createSocket(SocketType.PUSH);
+                    socket.connect(REPLIES_ENDPOINT);
+                    return socket;
+                });
+
+                ExecutorService workers = createWorkers(queueDepth);
     
                 System.out.println("Server listening on port " + port + "...");
                 System.out.println("Press Ctrl+C to exit.");
+
+                publisher = context.createSocket(SocketType.PUB);
+                publisher.bind("tcp://*:" + (port + HashRing.PUBLISH_PORT_OFFSET));
     
                 createDatabase(id);
-    
-                //launch a thread that every 10 seconds checks for hinted handoffs
-                /*ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-                executor.scheduleAtFixedRate(() -> {
-                    searchHintedHandoff(id);
-                }, 10, 10, TimeUnit.SECONDS);*/
+
+                serverConnections = new ServerConnectionPool(context);
+
+                // the replication loops skip the servers this suspects to be down instead of waiting on them
+                failureDetector = new FailureDetector(Server::ping, () -> {
+                    HashRing ring = hashRing.get();
+                    List<Integer> serverIds = ring == null ? new ArrayList<>() : new ArrayList<>(ring.getServerIds());
+                    serverIds.remove(Integer.valueOf(id));
+                    return serverIds;
+                }, PROBE_INTERVAL, PHI_THRESHOLD);
+                failureDetector.start();
+    
+                // replicas kept for servers that were down go back to them once they are up
+                ScheduledExecutorService handoffs = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "hinted-handoff");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                handoffs.scheduleWithFixedDelay(() -> searchHintedHandoff(id), HANDOFF_INTERVAL, HANDOFF_INTERVAL,
+                        TimeUnit.MILLISECONDS);
+
+                replications = Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable, "replication");
+                    thread.setDaemon(true);
+                    return thread;
+                });
     
                 // call a function when ctrl+c is pressed
                 Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -116,12 +255,26 @@
                     Message message = new Message();
                     message.setMethod("joinHashRing");
                     message.setServerId(String.valueOf(id));
+                    message.setAddress(address);
+                    message.setNrVirtualNodes(virtualNodes);
     
                     routerSocket.send(message.toJson().getBytes(ZMQ.CHARSET));
+
+                    // the router answers before it changes the ring, the join goes on without an answer in time
+                    String response = routerSocket.recvStr();
+                    Message reply = response == null ? null : Message.fromJson(response);
+                    if (reply == null) {
+                        System.out.println("No answer from the router to the join, waiting for the hash ring");
+                    } else if ("error".equals(reply.getMethod())) {
+                        System.out.println("Join refused by the router: " + reply.getListcontent());
+                        System.exit(1);
+                    }
                 }
                 else{
                     Message message = new Message();
                     message.setMethod("createHashRing");
+                    message.setServerId(String.valueOf(id));
+                    message.setAddress(address);
     
                     routerSocket.send(message.toJson().getBytes(ZMQ.CHARSET));
     
@@ -134,322 +287,408 @@
     
                 }
     
+                ZMQ.Poller poller = context.createPoller(2);
+                int frontendIndex = poller.register(frontend, ZMQ.Poller.POLLIN);
+                int repliesIndex = poller.register(replies, ZMQ.Poller.POLLIN);
+
                 while (!Thread.currentThread().isInterrupted()) {
-                    byte[] request = socket.recv();
-                    String receivedMessage = new String(request, ZMQ.CHARSET);
-    
-                    Message message = Message.fromJson(receivedMessage);
-    
-                    switch (message.getMethod()) {
-                        case "updateList" -> {
-                            // Call thread to handle update list message
-                            new Thread(() -> handleUpdateListMessage(id,message,socket)).start();
-                        }
-                        case "getList" -> {
-                            // Call thread to handle get list message
-                            new Thread(() -> handleGetListMessage(id, message, socket)).start();
-                        }
-                        case "replicateList" -> {
-                            // Call thread to handle replicate update list message
-                            new Thread(() -> handleReplicateListMessage(id,message,socket)).start();
-                        }
-                        case "addServerToHashRing" -> {
-                            // Call thread to handle add server to hash ring message
-                            new Thread(() -> handleAddServerToHashRingMessage(id,message,socket)).start();
+                    if (poller.poll() < 0) {
+                        break;
+                    }
+
+                    // forward every finished reply to its sender
+                    if (poller.pollin(repliesIndex)) {
+                        ZMsg reply;
+                        while ((reply = ZMsg.recvMsg(replies, ZMQ.DONTWAIT)) != null) {
+                            reply.send(frontend);
                         }
-                        case "removeServerFromHashRing" -> {
-                            // Call thread to handle remove server from hash ring message
-                            new Thread(() -> handleRemoveServerFromHashRingMessage(id,message,socket)).start();
+                    }
+
+                    if (!poller.pollin(frontendIndex)) {
+                        continue;
+                    }
+                    ZMsg request;
+                    while ((request = ZMsg.recvMsg(frontend, ZMQ.DONTWAIT)) != null) {
+                        // the envelope up to the empty delimiter: the sender's identity, and the request id a
+                        // router's DEALER puts in front of it, the reply goes back with the same envelope
+                        ZMsg client = new ZMsg();
+                        ZFrame frame;
+                        while ((frame = request.pop()) != null) {
+                            client.add(frame);
+                            if (frame.size() == 0) {
+                                break;
+                            }
                         }
-                        case "getKeys" ->{
-                            // Call thread to handle get keys message
-                            new Thread(() -> handleGetKeysMessage(id,message,socket)).start();
+                        String receivedMessage = request.popString();
+                        request.destroy();
+
+                        if (receivedMessage == null) {
+                            continue;
                         }
-                        case "deleteKeys" -> {
-                            // Call thread to handle delete keys message
-                            new Thread(() -> handleDeleteKeysMessage(id,socket)).start();
+
+                        Message message = parseRequest(receivedMessage);
+                        if (message == null) {
+                            // a malformed frame gets an error, the loop keeps serving everyone else
+                            System.out.println("Invalid message: " + receivedMessage);
+                            Message error = new Message();
+                            error.setMethod("error");
+                            reply(client, error.toJson());
+                            continue;
                         }
-                        case "replicateKeys" -> {
-                            // Call thread to handle replicate keys message
-                            new Thread(() -> handleReplicateKeysMessage(id,socket)).start();
+
+                        if (ROUTED_METHODS.contains(message.getMethod()) && isRoutedWithStaleRing(message)) {
+                            // the router takes the newer ring from the answer and routes the request again
+                            replyNewerRing(client);
+                            continue;
                         }
-                        default -> {
-                            System.out.println("Invalid message type.");
-                            String response = "Received message of type: ";
-                            socket.send(response.getBytes(ZMQ.CHARSET));
+
+                        switch (message.getMethod()) {
+                            case "updateList" -> {
+                                // Queue for a worker to handle update list message
+                                submit(workers, client, () -> handleUpdateListMessage(id,message,client));
+                            }
+                            case "ping" -> {
+                                // answered right away, there is nothing to wait for
+                                reply(client, message.toJson());
+                            }
+                            case "syncList" -> {
+                                // Queue for a worker to handle sync list message
+                                submit(workers, client, () -> handleSyncListMessage(id, message, client));
+                            }
+                            case "getList" -> {
+                                // Queue for a worker to handle get list message
+                                submit(workers, client, () -> handleGetListMessage(id, message, client));
+                            }
+                            case "multiUpdateList" -> {
+                                // Queue for a worker to handle multi update list message
+                                submit(workers, client, () -> handleMultiUpdateListMessage(id, message, client));
+                            }
+                            case "multiGetList" -> {
+                                // Queue for a worker to handle multi get list message
+                                submit(workers, client, () -> handleMultiGetListMessage(id, message, client));
+                            }
+                            case "replicateList" -> {
+                                // Queue for a worker to handle replicate update list message
+                                submit(workers, client, () -> handleReplicateListMessage(id,message,client));
+                            }
+                            case "addServerToHashRing" -> {
+                                // Queue for a worker to handle add server to hash ring message
+                                submit(workers, client, () -> handleAddServerToHashRingMessage(id,message,client));
+                            }
+                            case "removeServerFromHashRing" -> {
+                                // Queue for a worker to handle remove server from hash ring message
+                                submit(workers, client, () -> handleRemoveServerFromHashRingMessage(id,message,client));
+                            }
+                            case "getKeys" ->{
+                                // Queue for a worker to handle get keys message
+                                submit(workers, client, () -> handleGetKeysMessage(id,message,client));
+                            }
+                            case "deleteKeys" -> {
+                                // Queue for a worker to handle delete keys message
+                                submit(workers, client, () -> handleDeleteKeysMessage(id,client));
+                            }
+                            case "replicateKeys" -> {
+                                // Queue for a worker to handle replicate keys message
+                                submit(workers, client, () -> handleReplicateKeysMessage(id,client));
+                            }
+                            default -> {
+                                System.out.println("Invalid message type.");
+                                String response = "Received message of type: ";
+                                reply(client, response);
+                            }
                         }
                     }
                 }
+
+                workers.shutdownNow();
+                serverConnections.close();
             }
         }
-    
-        private static void updateListToReplicationNodes(int id,String listUUID, String listContent) {
-            String nodes = getNodesForReplication(getResponsibleServer(listUUID),10);
-    
-            String originalNode1 = nodes.split(";")[0];
-            String originalNode2 = nodes.split(";")[1];
-    
-            System.out.println("Nodes for replication: " + nodes);
-    
-            Message message = new Message();
-            message.setMethod("replicateUpdateList");
-            message.setListUUID(listUUID);
-            message.setListcontent(listContent);
-    
-            String[] nodesArray = nodes.split(";");
-    
-            int replicationLevel = 1;
-    
-            int nodesReplicated = 0;
-    
-            int nodesSeen = 0;
-    
-            for (String node : nodesArray) {
-                int port = Integer.parseInt(node.substring(1,2)) + SERVER_BASE_PORT;
-    
-                System.out.println("Port: " + port);
-    
-                String virtualNode = node.substring(3);
-    
-                if(port == 5000 + id) {
-                    System.out.println("Same server, storing in database...");
-                    replicateUpdateList(id, virtualNode, listUUID, listContent);
-                    nodesSeen++;
-                    nodesReplicated++;
-                    replicationLevel++;
-                    continue;
-                }
-    
-                message.setVirtualnode(virtualNode);
-    
-                if(nodesSeen >= 2){
-                    if(replicationLevel == 1) {
-                        message.setHintedHandoff(originalNode1);
-                        System.out.println("Hinted handoff: " + originalNode1);
-                    }
-                    else{
-                        message.setHintedHandoff(originalNode2);
-                        System.out.println("Hinted handoff: " + originalNode2);
-                    }
+
+        // The request in the frame, null if it is not JSON, has no method or carries an epoch that is not a number
+        private static Message parseRequest(String receivedMessage) {
+            try {
+                Message message = Message.fromJson(receivedMessage);
+                if (message == null || message.getMethod() == null) {
+                    return null;
                 }
-    
-                try (ZContext context = new ZContext()) {
-                    ZMQ.Socket socket = context.createSocket(SocketType.REQ);
-                    socket.connect("tcp://localhost:" + port);
-                    socket.setReceiveTimeOut(1000);
-                    System.out.println("connected to port " + port + "...");
-                    socket.send(message.toJson().getBytes(ZMQ.CHARSET));
-                    System.out.println("Sent request to server: " + message.toJson());
-                    byte[] response = socket.recv();
-    
-                    if(response == null){
-                        System.out.println("No response from server " + port);
-                        nodesSeen++;
-                        if(nodesSeen == 10){
-                            break;
-                        }
-                        continue;
-                    }
-                    String responseMessage = new String(response, ZMQ.CHARSET);
-                    System.out.println("Received response from server: " + responseMessage);
+                if (message.getRingEpoch() != null) {
+                    Long.parseLong(message.getRingEpoch());
                 }
-                nodesSeen++;
-                nodesReplicated++;
+                return message;
+            } catch (JsonParseException | NumberFormatException e) {
+                return null;
+            }
+        }
 
-                if(nodesReplicated == 2){
-                    System.out.println("Replicated to 2 nodes, breaking...");
-                    break;
-                }
+        // A fixed number of workers and a bounded queue in front of them, so a burst of requests waits or is
+        // refused instead of starting a thread per request
+        private static ExecutorService createWorkers(int queueDepth) {
+            ThreadFactory virtualThreads = virtualThreadFactory();
+            int workers = virtualThreads == null ? PLATFORM_WORKERS : VIRTUAL_WORKERS;
+            System.out.println("Handling requests with " + workers + (virtualThreads == null ? " platform" : " virtual")
+                    + " threads, queue depth " + queueDepth);
+            return new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueDepth),
+                    virtualThreads == null ? Executors.defaultThreadFactory() : virtualThreads);
+        }
+
+        // Thread.ofVirtual().factory() on a JVM that has virtual threads, null otherwise. Looked up by reflection
+        // because the server is built for Java 17.
+        private static ThreadFactory virtualThreadFactory() {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                return null;
             }
         }
 
-        private static void sendListToReplicationNodes(int id,String listUUID, String listName, String listContent) {
-            String nodes = getNodesForReplication(getResponsibleServer(listUUID),10);
+        private static void submit(ExecutorService workers, ZMsg client, Runnable handler) {
+            try {
+                workers.execute(handler);
+            } catch (RejectedExecutionException e) {
+                System.out.println("Request queue full, answering busy");
+                Message response = new Message();
+                response.setMethod("busy");
+                reply(client, response.toJson());
+            }
+        }
 
-            String originalNode1 = nodes.split(";")[0];
-            String originalNode2 = nodes.split(";")[1];
+        // Hands a reply to the poller loop, which sends it back along the request's envelope
+        private static void reply(ZMsg client, String response) {
+            ZMsg reply = client.duplicate();
+            reply.add(response);
+            reply.send(replySockets.get());
+        }
 
-            System.out.println("Nodes for replication: " + nodes);
+        // Servers answer busy when their request queue is full, the request was not handled
+        private static boolean isBusyReply(String response) {
+            return response.startsWith("{\"method\":\"busy\"");
+        }
+    
+        // Pings go over the pooled connection to the server like every other request, not a socket of their own
+        private static boolean ping(int serverId) {
+            Message message = new Message();
+            message.setMethod("ping");
+            return serverConnections.request(hashRing.get().getEndpoint(serverId), message.toJson(),
+                    PING_TIMEOUT) != null;
+        }
+
+        // Replicates with the cluster's N and W, which come with the ring
+        private static void sendListToReplicationNodes(int id,String listUUID, String listName, String listContent) {
+            HashRing ring = hashRing.get();
+            sendListToReplicationNodes(id, listUUID, listName, listContent, ring.getReplicationFactor(),
+                    ring.getWriteQuorum(), true, new CompletableFuture<>());
+        }
 
+        private static void sendListToReplicationNodes(int id, String listUUID, String listName, String listContent,
+                                                       int replicationFactor, int writeQuorum, boolean ownerStored,
+                                                       CompletableFuture<Integer> stored) {
             Message message = new Message();
             message.setMethod("replicateList");
             message.setListUUID(listUUID);
             message.setListname(listName);
             message.setListcontent(listContent);
 
-            String[] nodesArray = nodes.split(";");
-
-            boolean originalNode1Up = false;
-            boolean originalNode2Up = false;
-
-            int replicationLevel = 1;
+            replicateToPreferenceList(id, listUUID, message, replicationFactor, writeQuorum, ownerStored, stored,
+                    (virtualNode, replicationLevel, hintedHandoff) -> replicateList(id, virtualNode, listUUID,
+                            listName, listContent, String.valueOf(replicationLevel), hintedHandoff));
+        }
 
-            int nodesReplicated = 0;
+        // N of the request, the cluster's if it has none, and never above the cluster's: rebalancing and hinted
+        // handoffs store every list again with the cluster's N, more replicas would not last
+        private static int replicationFactor(Message message) {
+            int clusterReplicationFactor = hashRing.get().getReplicationFactor();
+            return Math.min(clusterReplicationFactor,
+                    Math.max(1, parseLevel(message.getReplicationFactor(), clusterReplicationFactor)));
+        }
 
-            int nodesSeen = 0;
+        // W of the request, at most N
+        private static int writeQuorum(Message message, int replicationFactor) {
+            return Math.min(replicationFactor,
+                    Math.max(1, parseLevel(message.getWriteQuorum(), hashRing.get().getWriteQuorum())));
+        }
 
-            for (String node : nodesArray) {
-                if(nodesReplicated == 2){
-                    System.out.println("Replicated to 2 nodes, breaking...");
-                    break;
-                }
-                if(node.equals(originalNode2) || originalNode1Up){
-                    replicationLevel = 2;
-                }else{
-                    replicationLevel = 1;
-                }
+        private static int parseLevel(String level, int defaultLevel) {
+            try {
+                return level == null ? defaultLevel : Integer.parseInt(level);
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid consistency level " + level + ", using " + defaultLevel);
+                return defaultLevel;
+            }
+        }
 
-                int port = Integer.parseInt(node.substring(1,2)) + SERVER_BASE_PORT;
+        // Sends the message to the nodes keeping the list at once, each one keeping the replica of its level: the
+        // list's responsible node at level 0 and the nodes of its preference list at levels 1 to N - 1. A node that
+        // is suspected, busy or does not answer in time is replaced right away by the next node of the list, which
+        // keeps the replica for it with a hinted handoff, while the other replicas are still in flight. Nodes of
+        // this server store their replica directly.
+        // When the coordinator is the responsible node its copy is already stored and level 0 is not sent. Any
+        // other coordinator took the write because the responsible node seemed down, so level 0 is sent as well and
+        // the coordinator keeps the replica of its own level, it never becomes the list's primary.
+        // stored completes with the number of distinct servers holding the list, the coordinator included, as soon
+        // as W of them do, after WRITE_QUORUM_TIMEOUT if they do not, or once no more replicas can be stored.
+        private static void replicateToPreferenceList(int id, String listUUID, Message message, int replicationFactor,
+                                                      int writeQuorum, boolean ownerStored,
+                                                      CompletableFuture<Integer> stored, ReplicaStore storeLocally) {
+            HashRing ring = hashRing.get();
+            String responsibleNode = ring.getResponsibleNode(listUUID);
+            List<String> nodes = new ArrayList<>();
+            nodes.add(responsibleNode);
+            nodes.addAll(ring.getPreferenceList(responsibleNode));
+            List<String> originalNodes = nodes.subList(0, Math.min(replicationFactor, nodes.size()));
+            int candidates = Math.min(nodes.size(), MAX_REPLICATION_NODES + 1);
 
-                System.out.println("Port: " + port);
+            System.out.println("Nodes for replication: " + nodes);
 
-                String virtualNode = node.substring(3);
+            // replication levels still without a replica, and the answers of the nodes sent one
+            Deque<Integer> missingLevels = new ArrayDeque<>();
+            for (int level = ownerStored ? 1 : 0; level < originalNodes.size(); level++) {
+                missingLevels.add(level);
+            }
+            BlockingQueue<ReplicaAnswer> answers = new LinkedBlockingQueue<>();
+            int next = ownerStored ? 1 : 0;
+            int inFlight = 0;
+            // servers holding a copy, several virtual nodes of one server count once towards W
+            Set<Integer> servers = new HashSet<>();
+            if (ownerStored) {
+                servers.add(id);
+            }
+            long quorumDeadline = System.currentTimeMillis() + WRITE_QUORUM_TIMEOUT;
 
-                if(port == 5000 + id) {
-                    System.out.println("Same server, storing in database...");
-                    if(node.equals(originalNode1))
-                        originalNode1Up = true;
-                    if(node.equals(originalNode2))
-                        originalNode2Up = true;
-                    replicateList(id, virtualNode, listUUID, listName, listContent,String.valueOf(replicationLevel),"");
-                    nodesSeen++;
-                    nodesReplicated++;
-                    continue;
+            while (true) {
+                if (servers.size() >= writeQuorum) {
+                    stored.complete(servers.size());
                 }
 
-                message.setVirtualnode(virtualNode);
-                message.setReplicationLevel(String.valueOf(replicationLevel));
+                while (!missingLevels.isEmpty() && next < candidates) {
+                    int level = missingLevels.poll();
+                    boolean fallback = next >= originalNodes.size();
+                    String node = nodes.get(next++);
+                    int serverId = HashRing.serverId(node);
+                    String virtualNode = HashRing.virtualNode(node);
+                    String hintedHandoff = fallback ? originalNodes.get(level) : "";
 
-                if(nodesSeen >= 2){
-                    if(replicationLevel == 1) {
-                        message.setHintedHandoff(originalNode1);
-                        System.out.println("Hinted handoff: " + originalNode1);
+                    if (serverId == id) {
+                        System.out.println("Same server, storing in database...");
+                        storeLocally.store(virtualNode, level, hintedHandoff);
+                        servers.add(id);
+                        if (servers.size() >= writeQuorum) {
+                            stored.complete(servers.size());
+                        }
+                        continue;
+                    }
+                    if (!failureDetector.isAvailable(serverId)) {
+                        System.out.println("Server " + serverId + " is suspected to be down, skipping...");
+                        missingLevels.add(level);
+                        continue;
                     }
-                    else{
-                        message.setHintedHandoff(originalNode2);
-                        System.out.println("Hinted handoff: " + originalNode2);
+
+                    Message replica = Message.fromJson(message.toJson());
+                    replica.setVirtualnode(virtualNode);
+                    replica.setReplicationLevel(String.valueOf(level));
+                    if (fallback) {
+                        replica.setHintedHandoff(hintedHandoff);
+                        System.out.println("Hinted handoff: " + replica.getHintedHandoff());
                     }
+
+                    System.out.println("Sent request to server: " + replica.toJson());
+                    long sentAt = System.currentTimeMillis();
+                    serverConnections.send(ring.getEndpoint(serverId), replica.toJson(), REPLICATION_TIMEOUT)
+                            .whenComplete((response, e) -> answers.add(new ReplicaAnswer(serverId, level, sentAt,
+                                    e == null ? response : null)));
+                    inFlight++;
+                }
+                if (inFlight == 0) {
+                    break;
                 }
 
-                try (ZContext context = new ZContext()) {
-                    ZMQ.Socket socket = context.createSocket(SocketType.REQ);
-                    socket.connect("tcp://localhost:" + port);
-                    socket.setReceiveTimeOut(1000);
-                    System.out.println("connected to port " + port + "...");
-                    socket.send(message.toJson().getBytes(ZMQ.CHARSET));
-                    System.out.println("Sent request to server: " + message.toJson());
-                    byte[] response = socket.recv();
+                ReplicaAnswer answer;
+                try {
+                    long remaining = quorumDeadline - System.currentTimeMillis();
+                    answer = stored.isDone() ? answers.take() : answers.poll(remaining, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    stored.complete(servers.size());
+                    return;
+                }
+                if (answer == null) {
+                    // the writer gets its answer, the replicas still in flight are kept
+                    System.out.println("Write quorum of " + writeQuorum + " not reached in time for list " + listUUID);
+                    stored.complete(servers.size());
+                    continue;
+                }
+                inFlight--;
 
-                    if(response == null){
-                        System.out.println("No response from server " + port);
-                        if(nodesSeen == 10){
-                            break;
-                        }
-                    }
-                    else{
-                        String responseMessage = new String(response, ZMQ.CHARSET);
-                        System.out.println("Received response from server: " + responseMessage);
-                        nodesReplicated++;
-                        if(node.equals(originalNode1))
-                            originalNode1Up = true;
-                        if(node.equals(originalNode2))
-                            originalNode2Up = true;
-                    }
+                if (answer.response() == null) {
+                    System.out.println("No response from server " + answer.serverId());
+                    failureDetector.suspect(answer.serverId(), answer.sentAt());
+                    missingLevels.add(answer.level());
+                } else if (isBusyReply(answer.response())) {
+                    // not stored there, the next node in the preference list takes it
+                    System.out.println("Server " + answer.serverId() + " is busy");
+                    missingLevels.add(answer.level());
+                } else {
+                    System.out.println("Received response from server: " + answer.response());
+                    servers.add(answer.serverId());
                 }
-                nodesSeen++;
             }
+
+            System.out.println("Stored on " + servers.size() + " servers");
+            stored.complete(servers.size());
         }
-    
-        private static int getSHA256Hash(String input) {
-            try {
-                MessageDigest digest = MessageDigest.getInstance("SHA-256");
-                byte[] hash = digest.digest(input.getBytes(StandardCharsets.UTF_8));
-                return byteArrayToInt(hash);
-            } catch (NoSuchAlgorithmException e) {
-                e.printStackTrace();
-                return 0;
-            }
+
+        // Stores a replica of a list on this server, with the node it is kept for if it is a hinted handoff
+        private interface ReplicaStore {
+            void store(String virtualNode, int replicationLevel, String hintedHandoff);
         }
-    
-        private static int byteArrayToInt(byte[] bytes) {
-            int value = 0;
-            for (byte b : bytes) {
-                value = (value << 8) | (b & 0xFF);
-            }
-            return value;
+
+        private record ReplicaAnswer(int serverId, int level, long sentAt, String response) {
         }
     
         public static String getResponsibleServer(String listUUID) {
-            int hash = getSHA256Hash(listUUID) % 1000; // Modulo 100
-            for (Pair<String, Integer> pair : hashRing) {
-                if (hash <= pair.right()) {
-                    return pair.left();
-                }
-            }
-            return hashRing.get(0).left();
+            return hashRing.get().getResponsibleNode(listUUID);
         }
     
         public static String getNextNode(String node) {
-            // find node in hash ring
-            int index = 0;
-            for (Pair<String, Integer> pair : hashRing) {
-                if (pair.left().equals(node)) {
-                    break;
-                }
-                index++;
-            }
-    
-            // get the next node in the hash ring
-            return hashRing.get((index + 1) % hashRing.size()).left();
+            return hashRing.get().getNextNode(node);
         }
     
         public static String getPreviousNode(String node) {
-            // find node in hash ring
-            int index = 0;
-            for (Pair<String, Integer> pair : hashRing) {
-                if (pair.left().equals(node)) {
-                    break;
-                }
-                index++;
-            }
-    
-            // get the previous node in the hash ring
-            int size = hashRing.size();
-            return hashRing.get((index + size - 1) % size).left();
+            return hashRing.get().getPreviousNode(node);
         }
-    
-        public static String getNodesForReplication(String node, int numberOfNodes) {
-            // find node in hash ring
-            int index = 0;
-            for (Pair<String, Integer> pair : hashRing) {
-                if (pair.left().equals(node)) {
-                    break;
-                }
-                index++;
-            }
-    
-            // get the next numberOfNodes nodes in the hash ring
-            StringBuilder nodes = new StringBuilder();
-            for (int i = 1; i <= numberOfNodes; i++) {
-                nodes.append(hashRing.get((index + i) % hashRing.size()).left()).append(";");
-            }
-            return nodes.toString();
-    
+
+        // Rings can arrive out of order from concurrent handler threads, the one with the newest epoch wins and is
+        // returned, so a caller can tell its ring was ignored
+        private static HashRing publishHashRing(String hashRingString) {
+            return publishHashRing(HashRing.fromString(hashRingString));
         }
-    
-        private static List<Pair<String, Integer>> getHashRing(String[] hashRingParts) {
-            List<Pair<String, Integer>> hashRing = new ArrayList<>();
-            for (String hashRingPart : hashRingParts) {
-                String[] pair = hashRingPart.split(",");
-                hashRing.add(new Pair<>(pair[0], Integer.parseInt(pair[1])));
+
+        private static HashRing publishHashRing(HashRing ring) {
+            HashRing previous = hashRing.getAndAccumulate(ring, HashRing::newest);
+            if (previous == null) {
+                fillRingTokens(ring);
             }
-            return hashRing;
+            HashRing current = HashRing.newest(previous, ring);
+            if (current != ring) {
+                System.out.println("Ignoring hash ring of epoch " + ring.getEpoch() + ", already at epoch "
+                        + current.getEpoch());
+            }
+            return current;
         }
     
         private static void createDatabase(int id) {
             String url = "jdbc:sqlite:database/server/server_" + id + ".db";
+
+            try {
+                database = new ConnectionPool(url, DATABASE_CONNECTIONS);
+            } catch (SQLException e) {
+                System.out.println("Error opening database: " + e.getMessage());
+                System.exit(1);
+            }
     
-            try (Connection conn = DriverManager.getConnection(url)) {
+            try (Connection conn = database.getConnection()) {
                 if (conn != null) {
                     String sql = "CREATE TABLE IF NOT EXISTS shopping_lists ("
                             + "id INTEGER PRIMARY KEY AUTOINCREMENT,"
@@ -466,129 +705,429 @@
                         stmt.execute(sql);
                         System.out.println("Table created successfully.");
                     }
+                    migrateDatabase(conn);
                 }
             } catch (SQLException e) {
                 System.out.println("Error creating database: " + e.getMessage());
             }
         }
-    
-        //mark list as to delete
-        private static void markListToDelete(int id,String virtualNode, String listUUID) {
-            System.out.println("Marking list to delete...");
-    
-            String url = "jdbc:sqlite:database/server/server_" + id + ".db";
-            try (Connection conn = DriverManager.getConnection(url)) {
-                if (conn != null) {
-                    String sql = "UPDATE shopping_lists SET to_delete = 1 WHERE list_uuid = ? AND virtualnode_id = ?";
+
+        // Brings a database created by an older server up to date, the version reached is kept in user_version.
+        // Version 1 adds the indexes of the queries run on every request and during rebalancing, and the ring token
+        // column, after merging the copies of a list that concurrent creations left on the same virtual node.
+        private static void migrateDatabase(Connection conn) throws SQLException {
+            int version;
+            try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+                version = rs.getInt(1);
+            }
+            if (version >= 1) {
+                return;
+            }
+
+            conn.setAutoCommit(false);
+            try {
+                mergeDuplicateLists(conn);
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("ALTER TABLE shopping_lists ADD COLUMN ring_token INTEGER DEFAULT NULL");
+                    // one row per list and virtual node, the lookups by list also only read the index
+                    stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS shopping_lists_list "
+                            + "ON shopping_lists (list_uuid, virtualnode_id)");
+                    // getKeys and getAllKeys, run when servers join and leave
+                    stmt.execute("CREATE INDEX IF NOT EXISTS shopping_lists_virtualnode "
+                            + "ON shopping_lists (virtualnode_id, replicated, list_uuid)");
+                    stmt.execute("CREATE INDEX IF NOT EXISTS shopping_lists_replicated "
+                            + "ON shopping_lists (replicated, list_uuid)");
+                    // few rows are deleted or waiting for their node, these indexes only hold those
+                    stmt.execute("CREATE INDEX IF NOT EXISTS shopping_lists_to_delete "
+                            + "ON shopping_lists (id) WHERE to_delete = 1");
+                    stmt.execute("CREATE INDEX IF NOT EXISTS shopping_lists_hinted_handoff "
+                            + "ON shopping_lists (hinted_handoff) WHERE hinted_handoff IS NOT NULL");
+                    // the keys of a node within a range of the ring, when a server joins
+                    stmt.execute("CREATE INDEX IF NOT EXISTS shopping_lists_ring_token "
+                            + "ON shopping_lists (virtualnode_id, replicated, ring_token)");
+                    stmt.execute("PRAGMA user_version = 1");
+                }
+                conn.commit();
+                System.out.println("Database migrated to version 1.");
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+
+        // Lists created at the same time by two handler threads could end up twice on the same virtual node,
+        // the copies are merged into the oldest row and the others removed. The list is only kept deleted if every
+        // copy was.
+        private static void mergeDuplicateLists(Connection conn) throws SQLException {
+            List<String[]> duplicates = new ArrayList<>();
+            String sql = "SELECT list_uuid, virtualnode_id FROM shopping_lists GROUP BY list_uuid, virtualnode_id "
+                    + "HAVING COUNT(*) > 1";
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    duplicates.add(new String[]{rs.getString("list_uuid"), rs.getString("virtualnode_id")});
+                }
+            }
+
+            for (String[] duplicate : duplicates) {
+                int keptId = -1;
+                int toDelete = 1;
+                CRDT.MapPNCounter merged = null;
+                sql = "SELECT id, list_content, to_delete FROM shopping_lists WHERE list_uuid = ? AND virtualnode_id = ? "
+                        + "ORDER BY id";
+                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    pstmt.setString(1, duplicate[0]);
+                    pstmt.setString(2, duplicate[1]);
+                    ResultSet rs = pstmt.executeQuery();
+                    while (rs.next()) {
+                        if (keptId == -1) {
+                            keptId = rs.getInt("id");
+                        }
+                        toDelete = Math.min(toDelete, rs.getInt("to_delete"));
+                        String listContent = rs.getString("list_content");
+                        if (listContent != null) {
+                            CRDT.MapPNCounter content = toMapPNCounter(listContent);
+                            merged = merged == null ? content : CRDT.MapPNCounter.merge(merged, content);
+                        }
+                    }
+                }
+
+                sql = "UPDATE shopping_lists SET list_content = ?, to_delete = ? WHERE id = ?";
+                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    pstmt.setString(1, merged == null ? null : merged.toJson());
+                    pstmt.setInt(2, toDelete);
+                    pstmt.setInt(3, keptId);
+                    pstmt.executeUpdate();
+                }
+                sql = "DELETE FROM shopping_lists WHERE list_uuid = ? AND virtualnode_id = ? AND id <> ?";
+                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    pstmt.setString(1, duplicate[0]);
+                    pstmt.setString(2, duplicate[1]);
+                    pstmt.setInt(3, keptId);
+                    pstmt.executeUpdate();
+                }
+                System.out.println("Merged copies of list " + duplicate[0] + " in " + duplicate[1]);
+            }
+        }
+
+        // Position of the list on the ring, stored with it so the lists of a range of the ring can be read from
+        // the index. Null until the server has a ring.
+        private static Long ringToken(String listUUID) {
+            HashRing ring = hashRing.get();
+            return ring == null ? null : ring.token(listUUID);
+        }
+
+        // Lists stored before the server had a ring, or before the column existed, get their token from the first
+        // ring the server gets. The hash function does not change with the ring, so this is only needed once.
+        private static void fillRingTokens(HashRing ring) {
+            try (Connection conn = database.getConnection()) {
+                List<String> listUUIDs = new ArrayList<>();
+                String sql = "SELECT DISTINCT list_uuid FROM shopping_lists WHERE ring_token IS NULL";
+                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    ResultSet rs = pstmt.executeQuery();
+                    while (rs.next()) {
+                        listUUIDs.add(rs.getString("list_uuid"));
+                    }
+                }
+                if (listUUIDs.isEmpty()) {
+                    return;
+                }
+
+                conn.setAutoCommit(false);
+                try {
+                    sql = "UPDATE shopping_lists SET ring_token = ? WHERE list_uuid = ?";
                     try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                        pstmt.setString(1, listUUID);
-                        pstmt.setString(2, virtualNode);
-                        pstmt.executeUpdate();
+                        for (String listUUID : listUUIDs) {
+                            pstmt.setLong(1, ring.token(listUUID));
+                            pstmt.setString(2, listUUID);
+                            pstmt.executeUpdate();
+                        }
                     }
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
                 }
+                System.out.println("Stored the ring token of " + listUUIDs.size() + " lists");
             } catch (SQLException e) {
-                System.out.println("Error marking list to delete: " + e.getMessage());
+                System.out.println("Error storing ring tokens: " + e.getMessage());
             }
         }
     
-        private static void createList(int id, String virtualNode, String listUUID, String listName,String listContent) {
+        // Returns the content stored, which is merged with the list if another thread created it first
+        private static String createList(int id, String virtualNode, String listUUID, String listName,String listContent) {
             System.out.println("Creating list...");
-    
-            String url = "jdbc:sqlite:database/server/server_" + id + ".db";
-    
-            try (Connection conn = DriverManager.getConnection(url)) {
+
+            boolean created = false;
+            try (Connection conn = database.getConnection()) {
                 if (conn != null) {
-                    String sql = "INSERT INTO shopping_lists (virtualnode_id, list_uuid, list_name, list_content) VALUES (?, ?, ?, ?)";
+                    String sql = "INSERT INTO shopping_lists (virtualnode_id, list_uuid, list_name, list_content, ring_token) "
+                            + "VALUES (?, ?, ?, ?, ?) ON CONFLICT (list_uuid, virtualnode_id) DO NOTHING";
                     try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
                         pstmt.setString(1, virtualNode);
                         pstmt.setString(2, listUUID);
                         pstmt.setString(3, listName);
                         pstmt.setString(4, listContent);
-                        pstmt.executeUpdate();
+                        pstmt.setObject(5, ringToken(listUUID));
+                        created = pstmt.executeUpdate() > 0;
                     }
                 }
             } catch (SQLException e) {
                 System.out.println("Error creating list: " + e.getMessage());
+                return listContent;
+            }
+            if (!created) {
+                return updateList(id, virtualNode, listUUID, listContent);
+            }
+            publishListUpdate(listUUID, null, listContent);
+            return listContent;
+        }
+
+        // Publishes the new content of a list that changed, with the list's UUID as the topic. Only the server
+        // that took the client's write publishes it, the replicas' copies of the same change are not published
+        // again, and writes that do not change the list (the same content coming back from a client) are not
+        // published at all.
+        private static void publishListUpdate(String listUUID, String previousContent, String listContent) {
+            if (listContent == null || previousContent != null
+                    && JsonParser.parseString(previousContent).equals(JsonParser.parseString(listContent))) {
+                return;
+            }
+            synchronized (publisher) {
+                publisher.sendMore(listUUID);
+                publisher.send(listContent);
             }
         }
     
-        private static void handleUpdateListMessage(int id,Message message, ZMQ.Socket socket) {
-            String response = "";
+        private static void handleUpdateListMessage(int id,Message message, ZMsg client) {
+            boolean responsible = isResponsibleNode(id, message);
+            String response = responsible ? storeList(id, message) : storeFailoverList(id, message);
+            System.out.println(response);
+
+            int replicationFactor = replicationFactor(message);
+            int writeQuorum = writeQuorum(message, replicationFactor);
+            CompletableFuture<Integer> stored = new CompletableFuture<>();
+            stored.thenAccept(copies -> reply(client, copies >= writeQuorum ? response
+                    : "Write quorum not reached in server " + id + ": stored on " + copies + " of " + writeQuorum
+                    + " servers"));
+
+            sendListToReplicationNodes(id,message.getListUUID(), message.getListname(),message.getListcontent(),
+                    replicationFactor, writeQuorum, responsible, stored);
+        }
+
+        // Stores the client's copy of the list and answers with the list merged with what the server had, so the
+        // client pushes its changes and gets everyone else's in the same exchange
+        private static void handleSyncListMessage(int id, Message message, ZMsg client) {
+            boolean responsible = isResponsibleNode(id, message);
+            String listContent;
+            if (!responsible) {
+                // the client gets the list merged with this server's replica, which is stored by the replication
+                String replicaContent = getListContent(id, message.getVirtualnode(), message.getListUUID());
+                listContent = replicaContent == null ? message.getListcontent() : CRDT.MapPNCounter.merge(
+                        toMapPNCounter(replicaContent), toMapPNCounter(message.getListcontent())).toJson();
+                publishListUpdate(message.getListUUID(), replicaContent, listContent);
+            } else if(listExists(id,message.getListUUID(), message.getVirtualnode())) {
+                listContent = updateList(id, message.getVirtualnode(), message.getListUUID(), message.getListcontent());
+            } else {
+                listContent = createList(id, message.getVirtualnode(), message.getListUUID(), message.getListname(),
+                        message.getListcontent());
+            }
+
+            Message response = new Message();
+            response.setMethod("syncList");
+            response.setListUUID(message.getListUUID());
+            response.setListname(message.getListname());
+            response.setListcontent(listContent);
 
+            int replicationFactor = replicationFactor(message);
+            int writeQuorum = writeQuorum(message, replicationFactor);
+            CompletableFuture<Integer> stored = new CompletableFuture<>();
+            stored.thenAccept(copies -> {
+                if (copies >= writeQuorum) {
+                    reply(client, response.toJson());
+                } else {
+                    System.out.println("Write quorum not reached: stored on " + copies + " of " + writeQuorum
+                            + " servers");
+                    Message error = new Message();
+                    error.setMethod("error");
+                    error.setListUUID(message.getListUUID());
+                    reply(client, error.toJson());
+                }
+            });
+
+            sendListToReplicationNodes(id, message.getListUUID(), message.getListname(), listContent,
+                    replicationFactor, writeQuorum, responsible, stored);
+        }
+
+        // True if the request was sent to the list's responsible node, a router or client only sends it to
+        // another node when the responsible one seems to be down
+        private static boolean isResponsibleNode(int id, Message message) {
+            String responsibleNode = hashRing.get().getResponsibleNode(message.getListUUID());
+            return HashRing.serverId(responsibleNode) == id
+                    && HashRing.virtualNode(responsibleNode).equals(message.getVirtualnode());
+        }
+
+        // A node standing in for the list's responsible node does not store the list as its primary copy, the
+        // replication stores its replica at its level and hands the responsible node's copy off to it
+        private static String storeFailoverList(int id, Message message) {
+            System.out.println("Not the responsible node of list " + message.getListUUID() + ", storing a replica");
+            publishListUpdate(message.getListUUID(), null, message.getListcontent());
+            return "Updated list in server " + id;
+        }
+
+        private static String storeList(int id, Message message) {
             if(listExists(id,message.getListUUID(), message.getVirtualnode())) {
                 //update list in database
                 updateList(id, message.getVirtualnode(), message.getListUUID(), message.getListcontent());
 
-                //send response to client
-                response = "Updated list in server " + id;
+                return "Updated list in server " + id;
             } else {
                 //create list in database
                 createList(id, message.getVirtualnode(), message.getListUUID(), message.getListname(), message.getListcontent());
 
-                //send response to client
-                response = "Created list in server " + id;
+                return "Created list in server " + id;
             }
-            System.out.println(response);
-            socket.send(response.getBytes(ZMQ.CHARSET));
+        }
+
+        private static void handleMultiUpdateListMessage(int id, Message message, ZMsg client) {
+            List<Message> results = new ArrayList<>();
+            List<Boolean> responsible = new ArrayList<>();
+            for (Message list : message.getLists()) {
+                responsible.add(isResponsibleNode(id, list));
+                Message result = new Message();
+                result.setMethod("updateList");
+                result.setListUUID(list.getListUUID());
+                result.setListcontent(responsible.get(responsible.size() - 1) ? storeList(id, list)
+                        : storeFailoverList(id, list));
+                results.add(result);
+            }
+
+            // the batch is answered once every list reached the write quorum or gave up waiting for it, the lists
+            // that did not are answered as errors
+            int replicationFactor = replicationFactor(message);
+            int writeQuorum = writeQuorum(message, replicationFactor);
+            List<CompletableFuture<Integer>> stored = new ArrayList<>();
+            for (int i = 0; i < results.size(); i++) {
+                // the coordinator's own copy is enough, the batch does not wait for the replication of every list
+                stored.add(writeQuorum <= 1 && responsible.get(i) ? CompletableFuture.completedFuture(1)
+                        : new CompletableFuture<>());
+            }
+            CompletableFuture.allOf(stored.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+                for (int i = 0; i < results.size(); i++) {
+                    int copies = stored.get(i).join();
+                    if (copies < writeQuorum) {
+                        results.get(i).setMethod("error");
+                        results.get(i).setListcontent("Write quorum not reached in server " + id + ": stored on "
+                                + copies + " of " + writeQuorum + " servers");
+                    }
+                }
 
-            sendListToReplicationNodes(id,message.getListUUID(), message.getListname(),message.getListcontent());
+                Message response = new Message();
+                response.setMethod("multiUpdateList");
+                response.setLists(results);
+                reply(client, response.toJson());
+            });
+
+            // every list replicates at the same time, one after the other they would outlast the routers' timeout
+            for (int i = 0; i < results.size(); i++) {
+                Message list = message.getLists().get(i);
+                boolean ownerStored = responsible.get(i);
+                CompletableFuture<Integer> listStored = stored.get(i);
+                replications.execute(() -> sendListToReplicationNodes(id, list.getListUUID(), list.getListname(),
+                        list.getListcontent(), replicationFactor, writeQuorum, ownerStored, listStored));
+            }
         }
     
-        private static void updateList(int id,String virtualNode, String listUUID, String listContent) {
-            System.out.println("Updating list...");
-    
-            String url = "jdbc:sqlite:database/server/server_" + id + ".db";
+        private static ReentrantLock[] createListLocks(int count) {
+            ReentrantLock[] locks = new ReentrantLock[count];
+            for (int i = 0; i < count; i++) {
+                locks[i] = new ReentrantLock();
+            }
+            return locks;
+        }
+
+        private static ReentrantLock listLock(String listUUID) {
+            return listLocks[Math.floorMod(listUUID.hashCode(), listLocks.length)];
+        }
+
+        // Merges the content into the stored list and returns the merged content
+        private static String updateList(int id,String virtualNode, String listUUID, String listContent) {
+            ReentrantLock lock = listLock(listUUID);
+            lock.lock();
+            try {
+                System.out.println("Updating list...");
     
-            String listContentDatabase = getListContent(id,virtualNode,listUUID);
+                String listContentDatabase = getListContent(id,virtualNode,listUUID);
     
-            //transform listCOntent into map pncounter
-            CRDT.MapPNCounter mapPNCounter = toMapPNCounter(listContentDatabase);
+                //transform listCOntent into map pncounter
+                CRDT.MapPNCounter mapPNCounter = toMapPNCounter(listContentDatabase);
     
-            //transform listContent into map pncounter
-            CRDT.MapPNCounter mapPNCounter2 = toMapPNCounter(listContent);
+                //transform listContent into map pncounter
+                CRDT.MapPNCounter mapPNCounter2 = toMapPNCounter(listContent);
     
-            //merge both maps
-            CRDT.MapPNCounter merged = CRDT.MapPNCounter.merge(mapPNCounter, mapPNCounter2);
+                //merge both maps
+                CRDT.MapPNCounter merged = CRDT.MapPNCounter.merge(mapPNCounter, mapPNCounter2);
     
-            //transform map into string
-            String listContentMerged = merged.toJson();
+                //transform map into string
+                String listContentMerged = merged.toJson();
     
-            try (Connection conn = DriverManager.getConnection(url)) {
-                if (conn != null) {
-                    String sql = "UPDATE shopping_lists SET list_content = ? WHERE list_uuid = ? AND virtualnode_id = ?";
-                    try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                        pstmt.setString(1, listContentMerged);
-                        pstmt.setString(2, listUUID);
-                        pstmt.setString(3, virtualNode);
-                        pstmt.executeUpdate();
+                try (Connection conn = database.getConnection()) {
+                    if (conn != null) {
+                        String sql = "UPDATE shopping_lists SET list_content = ? WHERE list_uuid = ? AND virtualnode_id = ?";
+                        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                            pstmt.setString(1, listContentMerged);
+                            pstmt.setString(2, listUUID);
+                            pstmt.setString(3, virtualNode);
+                            pstmt.executeUpdate();
+                        }
                     }
+                } catch (SQLException e) {
+                    System.out.println("Error updating list: " + e.getMessage());
                 }
-            } catch (SQLException e) {
-                System.out.println("Error updating list: " + e.getMessage());
-            }
-    
-            // print the message
-            System.out.println("Received message: " + String.join(";", listUUID, listContent));
     
+                // print the message
+                System.out.println("Received message: " + String.join(";", listUUID, listContent));
+
+                publishListUpdate(listUUID, listContentDatabase, listContentMerged);
+                return listContentMerged;
+            } finally {
+                lock.unlock();
+            }
         }
     
-        private static void handleGetListMessage(int id,Message message, ZMQ.Socket socket) {
+        private static void handleGetListMessage(int id,Message message, ZMsg client) {
             //get list from database
             Message response = getList(id,message.getVirtualnode(), message.getListUUID());
     
             //send response to client
-            socket.send(response.toJson().getBytes(ZMQ.CHARSET));
+            reply(client, response.toJson());
+        }
+
+        private static void handleMultiGetListMessage(int id, Message message, ZMsg client) {
+            List<Message> lists = new ArrayList<>();
+            for (Message list : message.getLists()) {
+                Message result = getList(id, list.getVirtualnode(), list.getListUUID());
+                result.setVirtualnode(list.getVirtualnode());
+                lists.add(result);
+            }
+
+            Message response = new Message();
+            response.setMethod("multiGetList");
+            response.setLists(lists);
+            reply(client, response.toJson());
         }
     
         private static Message getList(int id,String virtualNode, String listUUID) {
             System.out.println("Getting list...");
     
             // get the list name and products and send it to the client
-            String url = "jdbc:sqlite:database/server/server_" + id + ".db";
             String listContent = null;
             String listName = null;
     
-            try (Connection conn = DriverManager.getConnection(url)) {
+            try (Connection conn = database.getConnection()) {
                 if (conn != null) {
                     String sql = "SELECT list_name, list_content FROM shopping_lists WHERE list_uuid = ? AND virtualnode_id = ?";
                     try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -612,49 +1151,8 @@
     
             return message;
         }
-
-
-
-        private static void replicateCreationList(int id, String virtualNode, String listUUID, String listName,
-                                                               String listContent, String replicationLevel,String hintedHandoff) {
-            System.out.println("Replicating creation of list...");
     
-            String url = "jdbc:sqlite:database/server/server_" + id + ".db";
-    
-            try (Connection conn = DriverManager.getConnection(url)) {
-                if (conn != null) {
-                    if(hintedHandoff.isEmpty()){
-                        String sql = "INSERT INTO shopping_lists (virtualnode_id, list_uuid, list_name, list_content, " +
-                                "replicated) VALUES (?, ?, ?, ?, ?)";
-                        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                            pstmt.setString(1, virtualNode);
-                            pstmt.setString(2, listUUID);
-                            pstmt.setString(3, listName);
-                            pstmt.setString(4, listContent);
-                            pstmt.setString(5, replicationLevel);
-                            pstmt.executeUpdate();
-                        }
-                    }
-                    else{
-                        String sql = "INSERT INTO shopping_lists (virtualnode_id, list_uuid, list_name, list_content, " +
-                                "replicated, hinted_handoff) VALUES (?, ?, ?, ?, ?, ?)";
-                        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                            pstmt.setString(1, virtualNode);
-                            pstmt.setString(2, listUUID);
-                            pstmt.setString(3, listName);
-                            pstmt.setString(4, listContent);
-                            pstmt.setString(5, replicationLevel);
-                            pstmt.setString(6, hintedHandoff);
-                            pstmt.executeUpdate();
-                        }
-                    }
-                }
-            } catch (SQLException e) {
-                System.out.println("Error replicating list: " + e.getMessage());
-            }
-        }
-    
-        private static void handleReplicateListMessage(int id,Message message,ZMQ.Socket socket) {
+        private static void handleReplicateListMessage(int id,Message message,ZMsg client) {
             String hintedHandoff = message.getHintedHandoff();
 
             if(hintedHandoff == null){
@@ -668,87 +1166,89 @@
             //send response to client
             String response = "Replicated update of list in server " + id;
     
-            socket.send(response.getBytes(ZMQ.CHARSET));
+            reply(client, response);
         }
 
 
         private static void replicateList(int id, String virtualNode, String listUUID, String listName,
                                           String listContent, String replicationLevel,String hintedHandoff) {
-            if(!listExists(id,listUUID, virtualNode)){
+            ReentrantLock lock = listLock(listUUID);
+            lock.lock();
+            try {
                 System.out.println("Replicating update of list...");
 
-                String url = "jdbc:sqlite:database/server/server_" + id + ".db";
-
-                try (Connection conn = DriverManager.getConnection(url)) {
-                    if (conn != null) {
-                        if(hintedHandoff.isEmpty()){
-                            String sql = "INSERT INTO shopping_lists (virtualnode_id, list_uuid, list_name, list_content, " +
-                                    "replicated) VALUES (?, ?, ?, ?, ?)";
-                            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                                pstmt.setString(1, virtualNode);
-                                pstmt.setString(2, listUUID);
-                                pstmt.setString(3, listName);
-                                pstmt.setString(4, listContent);
-                                pstmt.setString(5, replicationLevel);
-                                pstmt.executeUpdate();
+                if(!listExists(id,listUUID, virtualNode)){
+                    boolean created = false;
+                    try (Connection conn = database.getConnection()) {
+                        if (conn != null) {
+                            if(hintedHandoff.isEmpty()){
+                                String sql = "INSERT INTO shopping_lists (virtualnode_id, list_uuid, list_name, list_content, " +
+                                        "replicated, ring_token) VALUES (?, ?, ?, ?, ?, ?) " +
+                                        "ON CONFLICT (list_uuid, virtualnode_id) DO NOTHING";
+                                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                                    pstmt.setString(1, virtualNode);
+                                    pstmt.setString(2, listUUID);
+                                    pstmt.setString(3, listName);
+                                    pstmt.setString(4, listContent);
+                                    pstmt.setString(5, replicationLevel);
+                                    pstmt.setObject(6, ringToken(listUUID));
+                                    created = pstmt.executeUpdate() > 0;
+                                }
                             }
-                        }
-                        else{
-                            String sql = "INSERT INTO shopping_lists (virtualnode_id, list_uuid, list_name, list_content, " +
-                                    "replicated, hinted_handoff) VALUES (?, ?, ?, ?, ?, ?)";
-                            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                                pstmt.setString(1, virtualNode);
-                                pstmt.setString(2, listUUID);
-                                pstmt.setString(3, listName);
-                                pstmt.setString(4, listContent);
-                                pstmt.setString(5, replicationLevel);
-                                pstmt.setString(6, hintedHandoff);
-                                pstmt.executeUpdate();
+                            else{
+                                String sql = "INSERT INTO shopping_lists (virtualnode_id, list_uuid, list_name, list_content, " +
+                                        "replicated, hinted_handoff, ring_token) VALUES (?, ?, ?, ?, ?, ?, ?) " +
+                                        "ON CONFLICT (list_uuid, virtualnode_id) DO NOTHING";
+                                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                                    pstmt.setString(1, virtualNode);
+                                    pstmt.setString(2, listUUID);
+                                    pstmt.setString(3, listName);
+                                    pstmt.setString(4, listContent);
+                                    pstmt.setString(5, replicationLevel);
+                                    pstmt.setString(6, hintedHandoff);
+                                    pstmt.setObject(7, ringToken(listUUID));
+                                    created = pstmt.executeUpdate() > 0;
+                                }
                             }
                         }
+                    } catch (SQLException e) {
+                        System.out.println("Error replicating list: " + e.getMessage());
+                        return;
+                    }
+                    if (created) {
+                        return;
                     }
-                } catch (SQLException e) {
-                    System.out.println("Error replicating list: " + e.getMessage());
                 }
 
-            }
-            else{
-                System.out.println("Replicating update of list...");
-
-                String url = "jdbc:sqlite:database/server/server_" + id + ".db";
+                // the list exists, or another thread created it since the check above: merge instead of overwriting,
+                // a replica may receive an older copy than the one it has (read repair and replication of the same
+                // list can cross each other)
+                String listContentDatabase = getListContent(id, virtualNode, listUUID);
+                if (listContentDatabase != null) {
+                    listContent = CRDT.MapPNCounter.merge(toMapPNCounter(listContentDatabase),
+                            toMapPNCounter(listContent)).toJson();
+                }
 
-                try (Connection conn = DriverManager.getConnection(url)){
+                // a row this server marked to delete on a ring change is a replica again once another server replicates
+                // it here under the new ring, at the level it has there: a later deleteKeys must keep it. A replica kept
+                // for another node does not change the level of this node's own copy.
+                try (Connection conn = database.getConnection()){
                     if(conn != null){
-                        String sql = "UPDATE shopping_lists SET list_content = ? WHERE list_uuid = ? AND virtualnode_id = ?";
+                        String sql = "UPDATE shopping_lists SET list_content = ?, to_delete = 0, " +
+                                "replicated = COALESCE(?, replicated) WHERE list_uuid = ? AND virtualnode_id = ?";
                         try(PreparedStatement pstmt = conn.prepareStatement(sql)){
                             pstmt.setString(1, listContent);
-                            pstmt.setString(2, listUUID);
-                            pstmt.setString(3, virtualNode);
+                            pstmt.setString(2, hintedHandoff.isEmpty() ? replicationLevel : null);
+                            pstmt.setString(3, listUUID);
+                            pstmt.setString(4, virtualNode);
                             pstmt.executeUpdate();
                         }
                     }
                 } catch (SQLException e) {
                     System.out.println("Error replicating list: " + e.getMessage());
                 }
-            }
-        }
-        private static void replicateUpdateList(int id, String virtualNode, String listUUID, String listContent) {
-            System.out.println("Replicating update of list...");
-    
-            String url = "jdbc:sqlite:database/server/server_" + id + ".db";
-    
-            try (Connection conn = DriverManager.getConnection(url)) {
-                if (conn != null) {
-                    String sql = "UPDATE shopping_lists SET list_content = ? WHERE list_uuid = ? AND virtualnode_id = ?";
-                    try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                        pstmt.setString(1, listContent);
-                        pstmt.setString(2, listUUID);
-                        pstmt.setString(3, virtualNode);
-                        pstmt.executeUpdate();
-                    }
-                }
-            } catch (SQLException e) {
-                System.out.println("Error replicating list: " + e.getMessage());
+            } finally {
+                lock.unlock();
             }
         }
     
@@ -758,191 +1258,257 @@
     
         private static void createHashRing(String hashRingString) {
     
-            hashRing = getHashRing(hashRingString.split(":"));
+            publishHashRing(hashRingString);
     
             System.out.println("Hash ring created.");
     
         }
     
-        private static void handleAddServerToHashRingMessage(int id,Message message,ZMQ.Socket socket) {
-            addServerToHashRing(id,message.getHashRing(),message.getServerId(),
-                    message.getNrVirtualNodes());
+        private static void handleAddServerToHashRingMessage(int id,Message message,ZMsg client) {
+            HashRing ring = ringFromUpdate(message);
+            if (ring == null) {
+                replyStaleRing(client);
+                return;
+            }
+            Message response = new Message();
+            if (!addServerToHashRing(id,ring,message.getServerId())) {
+                // the router does not count this as an acknowledgement and stops the join
+                response.setMethod("error");
+                response.setRingEpoch(String.valueOf(ring.getEpoch()));
+                reply(client, response.toJson());
+                return;
+            }
     
             //send response to client
-            String response = "Added server to hash ring in server " + id;
+            System.out.println("Added server to hash ring in server " + id);
+            response.setMethod(message.getMethod());
+            response.setRingEpoch(String.valueOf(ring.getEpoch()));
     
-            socket.send(response.getBytes(ZMQ.CHARSET));
+            reply(client, response.toJson());
+        }
+
+        // Builds the ring a membership change leads to. The change only carries the server that joined or left, and
+        // is applied to the current ring if that is the epoch right before it, otherwise the router sends the whole
+        // ring. Returns null if this server needs the whole ring.
+        private static HashRing ringFromUpdate(Message message) {
+            if (message.getHashRing() != null) {
+                return HashRing.fromString(message.getHashRing());
+            }
+            HashRing current = hashRing.get();
+            long epoch = Long.parseLong(message.getRingEpoch());
+            if (current == null || current.getEpoch() != epoch - 1) {
+                return null;
+            }
+            int serverId = Integer.parseInt(message.getServerId());
+            if (message.getMethod().equals("addServerToHashRing")) {
+                int virtualNodes;
+                try {
+                    virtualNodes = Integer.parseInt(message.getNrVirtualNodes());
+                } catch (NumberFormatException e) {
+                    virtualNodes = 0;
+                }
+                // without a usable count the change cannot be rebuilt here, the router sends the whole ring
+                return virtualNodes < 1 ? null : current.withServer(serverId, virtualNodes, message.getAddress());
+            }
+            return current.withoutServer(serverId);
+        }
+
+        private static void replyStaleRing(ZMsg client) {
+            HashRing current = hashRing.get();
+            Message response = new Message();
+            response.setMethod("staleRing");
+            response.setRingEpoch(current == null ? null : String.valueOf(current.getEpoch()));
+            reply(client, response.toJson());
+        }
+
+        // True if a router routed the request with an older ring than this server's, so it may have picked the
+        // wrong replicas. Requests from other servers carry no epoch and are not checked.
+        private static boolean isRoutedWithStaleRing(Message message) {
+            HashRing current = hashRing.get();
+            return message.getRingEpoch() != null && current != null
+                    && Long.parseLong(message.getRingEpoch()) < current.getEpoch();
+        }
+
+        private static void replyNewerRing(ZMsg client) {
+            HashRing current = hashRing.get();
+            System.out.println("Request routed with an older ring, sending ring of epoch " + current.getEpoch());
+            Message response = new Message();
+            response.setMethod("staleRing");
+            response.setRingEpoch(String.valueOf(current.getEpoch()));
+            response.setHashRing(current.toString());
+            reply(client, response.toJson());
         }
     
-        private static void addServerToHashRing(int id,String hashRingString,String newServerId,
-                                                             String virtualNodesPerServer) {
+        // Returns false if the joining server could not fetch the lists it takes over
+        private static boolean addServerToHashRing(int id,HashRing newRing,String newServerId) {
             System.out.println("Updating hash ring...");
     
-            hashRing = getHashRing(hashRingString.split(":"));
-    
-            int virtualNodes = Integer.parseInt(virtualNodesPerServer);
+            HashRing ring = publishHashRing(newRing);
+            if (ring != newRing) {
+                // a newer ring is already in place, its own change moved the lists for it
+                return true;
+            }
+
+            // servers can own different numbers of virtual nodes, this server goes through its own ones
+            List<String> ownNodes = ring.getVirtualNodes(id);
     
             //check if new server
             if(id == Integer.parseInt(newServerId)){
-                // go through each virtual node and ask the next node for the list of lists
-                for (int i = 1; i <= virtualNodes; i++) {
-                    String node = "S" + id + "V" + i; // "S0V0"
+                // every virtual node asks the node that owned its range before, the first one of another server
+                // after it, for the lists of that range, all at once
+                Map<String, CompletableFuture<String>> responses = new LinkedHashMap<>();
+                for (String node : ownNodes) {
                     System.out.println("Node: " + node);
-                    String nextNode = getNextNode(node);
-                    System.out.println("Next node: " + nextNode);
-    
-                    // connect to the next node
-                    int port = Integer.parseInt(nextNode.substring(1,2)) + SERVER_BASE_PORT;
-                    int virtualNode = Integer.parseInt(nextNode.substring(3));
-    
-                    try (ZContext context = new ZContext()) {
-                        ZMQ.Socket socket = context.createSocket(SocketType.REQ);
-                        socket.connect("tcp://localhost:" + port);
-                        System.out.println("connected to port " + port + "...");
-    
-                        Message message = new Message();
-                        message.setMethod("getKeys");
-                        message.setVirtualnode(String.valueOf(virtualNode));
-                        message.setReplicationLevel("0");
-                        socket.send(message.toJson().getBytes(ZMQ.CHARSET));
-                        System.out.println("Sent request to server: " + message.toJson());
-    
-                        byte[] response = socket.recv();
-                        String responseMessage = new String(response, ZMQ.CHARSET);
-                        System.out.println("Received response from server: " + responseMessage);
-    
-                        if (responseMessage.isEmpty()) {
-                            continue;
-                        }
-    
-                        String[] keys = responseMessage.split("/");
-                        for (String key : keys) {
-                            String[] keyParts = key.split(";");
-                            String listUUID = keyParts[0];
-                            String listName = keyParts[1];
-                            String listContent = keyParts[2];
-                            if(getResponsibleServer(listUUID).equals(node)){
-                                System.out.println("Storing list in database...");
-                                createList(id, String.valueOf(virtualNode), listUUID, listName, listContent);
-                            }
+                    List<String> preferenceList = ring.getPreferenceList(node);
+                    if (preferenceList.isEmpty()) {
+                        continue;
+                    }
+                    String previousOwner = preferenceList.get(0);
+                    System.out.println("Previous owner: " + previousOwner);
+
+                    Message message = new Message();
+                    message.setMethod("getKeys");
+                    message.setVirtualnode(HashRing.virtualNode(previousOwner));
+                    message.setReplicationLevel("0");
+                    // only the lists this node takes over, read from the ring token index
+                    message.setFromToken(String.valueOf(ring.getToken(ring.getPreviousNode(node))));
+                    message.setToToken(String.valueOf(ring.getToken(node)));
+                    System.out.println("Sent request to server: " + message.toJson());
+                    responses.put(node, serverConnections.send(ring.getEndpoint(HashRing.serverId(previousOwner)),
+                            message.toJson(), MEMBERSHIP_TIMEOUT));
+                }
+
+                for (Map.Entry<String, CompletableFuture<String>> response : responses.entrySet()) {
+                    String node = response.getKey();
+                    String responseMessage = response.getValue().join();
+                    System.out.println("Received response from server: " + responseMessage);
+                    if (responseMessage == null || isBusyReply(responseMessage)) {
+                        // the lists of that range are not here, the join must not go on to deleteKeys
+                        System.out.println("Could not get the keys of node " + node);
+                        return false;
+                    }
+                    if (responseMessage.isEmpty()) {
+                        continue;
+                    }
+
+                    String[] keys = responseMessage.split("/");
+                    for (String key : keys) {
+                        String[] keyParts = key.split(";");
+                        String listUUID = keyParts[0];
+                        String listName = keyParts[1];
+                        String listContent = keyParts[2];
+                        if(ring.getResponsibleNode(listUUID).equals(node)){
+                            System.out.println("Storing list in database...");
+                            createList(id, HashRing.virtualNode(node), listUUID, listName, listContent);
                         }
                     }
-    
                 }
             }
             else{
                 // go through each virtual node
-                for (int i = 1; i <= virtualNodes; i++) {
-                    String node = "S" + id + "V" + i; // "S0V0"
+                for (String node : ownNodes) {
                     System.out.println("Node: " + node);
-                    // see if level 0 keys are still responsible for this node
-                    String keys = getKeys(id,String.valueOf(i),"0");
-                    String [] keysArray = keys.split("/");
-                    for (String key : keysArray) {
-                        String[] keyParts = key.split(";");
-                        String listUUID = keyParts[0];
-                        if(!getResponsibleServer(listUUID).equals(node)){
-                            markListToDelete(id,String.valueOf(i),listUUID);
-                        }
-                    }
+                    // the level 0 keys outside the node's range of the ring moved to the new server
+                    markMovedKeysToDelete(id, HashRing.virtualNode(node), ring.getToken(ring.getPreviousNode(node)),
+                            ring.getToken(node));
                 }
             }
     
-            // for every server mark to delete the replication level 1 and level 2
-    
-            // go through each virtual node
-            for (int i = 1; i <= virtualNodes; i++) {
-                String node = "S" + id + "V" + i; // "S0V0"
+            // for every server mark to delete the replicas of every level above 0, replicateKeys stores them again
+            // from the level 0 lists whatever N is
+            for (String node : ownNodes) {
                 System.out.println("Node: " + node);
-                // mark to delete the replication level 1 and level 2
-                String keys = getKeys(id, String.valueOf(i), "1");
-                String[] keysArray = keys.split("/");
-                for (String key : keysArray) {
-                    String[] keyParts = key.split(";");
-                    String listUUID = keyParts[0];
-                    markListToDelete(id, String.valueOf(i), listUUID);
-                }
-                keys = getKeys(id, String.valueOf(i), "2");
-                keysArray = keys.split("/");
-                for (String key : keysArray) {
-                    String[] keyParts = key.split(";");
-                    String listUUID = keyParts[0];
-                    markListToDelete(id, String.valueOf(i), listUUID);
-                }
+                markReplicasToDelete(id, HashRing.virtualNode(node));
             }
     
             System.out.println("Hash ring updated.");
+            return true;
         }
     
-        private static void handleRemoveServerFromHashRingMessage(int id,Message message,ZMQ.Socket socket) {
-            removeServerFromHashRing(id,message.getHashRing(),message.getServerId(),
-                    message.getNrVirtualNodes());
+        private static void handleRemoveServerFromHashRingMessage(int id,Message message,ZMsg client) {
+            HashRing ring = ringFromUpdate(message);
+            if (ring == null) {
+                replyStaleRing(client);
+                return;
+            }
+            removeServerFromHashRing(id,ring,message.getServerId());
     
             //send response to client
-            String response = "Removed server from hash ring in server " + id;
+            System.out.println("Removed server from hash ring in server " + id);
+            Message response = new Message();
+            response.setMethod(message.getMethod());
+            response.setRingEpoch(String.valueOf(ring.getEpoch()));
     
-            socket.send(response.getBytes(ZMQ.CHARSET));
+            reply(client, response.toJson());
         }
     
-        public static void removeServerFromHashRing(int id,String hashRingString,String serverId,
-                                                    String virtualNodesPerServer) {
+        public static void removeServerFromHashRing(int id,HashRing newRing,String serverId) {
             System.out.println("Updating hash ring...");
+
+            // the ring the server is being removed from, a server that got the whole ring may not have it
+            HashRing ring = hashRing.get() == null ? newRing : hashRing.get();
+            if (HashRing.newest(ring, newRing) != newRing) {
+                // a newer ring is already in place, its own change moved the lists for it
+                System.out.println("Ignoring hash ring of epoch " + newRing.getEpoch() + ", already at epoch "
+                        + ring.getEpoch());
+                return;
+            }
+
+            // servers can own different numbers of virtual nodes, this server goes through its own ones
+            List<String> ownNodes = ring.getVirtualNodes(id);
     
-            int virtualNodes = Integer.parseInt(virtualNodesPerServer);
-    
-            for (int i = 1; i <= virtualNodes; i++) {
-                String node = "S" + id + "V" + i; // "S0V0"
+            for (String node : ownNodes) {
+                String virtualNode = HashRing.virtualNode(node);
                 System.out.println("Node: " + node);
                 // see if node is after the server to remove
-                String previousNode = getPreviousNode(node);
+                String previousNode = ring.getPreviousNode(node);
                 System.out.println("Previous node: " + previousNode);
-                if(previousNode.substring(1,2).equals(serverId)){
+                if(String.valueOf(HashRing.serverId(previousNode)).equals(serverId)){
                     // get the keys from replication level 1 and set them to replication level 0
-                    String keys = getKeys(id,String.valueOf(i),"1");
+                    String keys = getKeys(id,virtualNode,"1");
                     String [] keysArray = keys.split("/");
                     for (String key : keysArray) {
                         String[] keyParts = key.split(";");
                         String listUUID = keyParts[0];
-                        updateReplicationLevel(id,String.valueOf(i),listUUID,"0");
+                        updateReplicationLevel(id,virtualNode,listUUID,"0");
                     }
                 }
             }
     
-            // for every server mark to delete the replication level 1 and level 2
-    
-            // go through each virtual node
-            for (int i = 1; i <= virtualNodes; i++) {
-                String node = "S" + id + "V" + i; // "S0V0"
+            // for every server mark to delete the replicas of every level above 0, replicateKeys stores them again
+            // from the level 0 lists whatever N is
+            for (String node : ownNodes) {
                 System.out.println("Node: " + node);
-                // mark to delete the replication level 1 and level 2
-                String keys = getKeys(id, String.valueOf(i), "1");
-                String[] keysArray = keys.split("/");
-                for (String key : keysArray) {
-                    String[] keyParts = key.split(";");
-                    String listUUID = keyParts[0];
-                    markListToDelete(id, String.valueOf(i), listUUID);
-                }
-                keys = getKeys(id, String.valueOf(i), "2");
-                keysArray = keys.split("/");
-                for (String key : keysArray) {
-                    String[] keyParts = key.split(";");
-                    String listUUID = keyParts[0];
-                    markListToDelete(id, String.valueOf(i), listUUID);
-                }
+                markReplicasToDelete(id, HashRing.virtualNode(node));
             }
     
-            hashRing = getHashRing(hashRingString.split(":"));
+            publishHashRing(newRing);
     
             System.out.println("Hash ring updated.");
     
         }
     
+        // Marks to delete the replicas of every level above 0 a virtual node keeps, the ones it keeps for another
+        // node with a hinted handoff are left to the handoff
+        private static void markReplicasToDelete(int id, String virtualNode) {
+            try (Connection conn = database.getConnection()) {
+                if (conn != null) {
+                    String sql = "UPDATE shopping_lists SET to_delete = 1 WHERE virtualnode_id = ? AND replicated > 0 " +
+                            "AND hinted_handoff IS NULL";
+                    try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                        pstmt.setString(1, virtualNode);
+                        pstmt.executeUpdate();
+                    }
+                }
+            } catch (SQLException e) {
+                System.out.println("Error marking replicas to delete: " + e.getMessage());
+            }
+        }
+    
         public static void updateReplicationLevel(int id,String virtualNode, String listUUID, String replicationLevel) {
             System.out.println("Updating replication level...");
     
-            String url = "jdbc:sqlite:database/server/server_" + id + ".db";
-    
-            try (Connection conn = DriverManager.getConnection(url)) {
+            try (Connection conn = database.getConnection()) {
                 if (conn != null) {
                     String sql = "UPDATE shopping_lists SET replicated = ? WHERE list_uuid = ? AND virtualnode_id = ?";
                     try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -957,26 +1523,58 @@
             }
         }
     
-        private static void handleGetKeysMessage(int id,Message message,ZMQ.Socket socket) {
-            String keys = getKeys(id,message.getVirtualnode(),message.getReplicationLevel());
-            socket.send(keys.getBytes(ZMQ.CHARSET));
+        private static void handleGetKeysMessage(int id,Message message,ZMsg client) {
+            String keys = message.getFromToken() == null
+                    ? getKeys(id,message.getVirtualnode(),message.getReplicationLevel())
+                    : getKeys(id, message.getVirtualnode(), message.getReplicationLevel(),
+                            Long.parseLong(message.getFromToken()), Long.parseLong(message.getToToken()));
+            reply(client, keys);
         }
     
         private static String getKeys(int id,String virtualNode,String replicationLevel) {
             System.out.println("Getting keys...");
     
             // get the list name and products and send it to the client
-            String url = "jdbc:sqlite:database/server/server_" + id + ".db";
-    
             StringBuilder keys = new StringBuilder();
     
-            try (Connection conn = DriverManager.getConnection(url)) {
+            try (Connection conn = database.getConnection()) {
+                if (conn != null) {
+                    // replicas kept for another node are handed off to it, they are not this node's to move
+                    String sql = "SELECT list_uuid, list_name, list_content FROM shopping_lists WHERE virtualnode_id = ? " +
+                            "AND replicated = ? AND hinted_handoff IS NULL";
+                    try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                        pstmt.setString(1, virtualNode);
+                        pstmt.setString(2, replicationLevel);
+                        ResultSet rs = pstmt.executeQuery();
+                        while (rs.next()) {
+                            keys.append(rs.getString("list_uuid")).append(";").append(rs.getString
+                                    ("list_name")).append(";").append(rs.getString("list_content")).append("/");
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                System.out.println("Error getting keys: " + e.getMessage());
+            }
+            return keys.toString();
+        }
+    
+        // The keys of a virtual node whose ring token is after fromToken and up to toToken, the range wraps around
+        // the end of the ring when fromToken is not below toToken
+        private static String getKeys(int id, String virtualNode, String replicationLevel, long fromToken,
+                                      long toToken) {
+            System.out.println("Getting keys from token " + fromToken + " to " + toToken + "...");
+
+            StringBuilder keys = new StringBuilder();
+
+            try (Connection conn = database.getConnection()) {
                 if (conn != null) {
                     String sql = "SELECT list_uuid, list_name, list_content FROM shopping_lists WHERE virtualnode_id = ? " +
-                            "AND replicated = ?";
+                            "AND replicated = ? AND " + tokenRange(fromToken, toToken) + " AND hinted_handoff IS NULL";
                     try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
                         pstmt.setString(1, virtualNode);
                         pstmt.setString(2, replicationLevel);
+                        pstmt.setLong(3, fromToken);
+                        pstmt.setLong(4, toToken);
                         ResultSet rs = pstmt.executeQuery();
                         while (rs.next()) {
                             keys.append(rs.getString("list_uuid")).append(";").append(rs.getString
@@ -989,18 +1587,41 @@
             }
             return keys.toString();
         }
+
+        // Marks to delete the level 0 keys of a virtual node whose ring token is no longer in its range of the ring
+        private static void markMovedKeysToDelete(int id, String virtualNode, long fromToken, long toToken) {
+            try (Connection conn = database.getConnection()) {
+                if (conn != null) {
+                    String sql = "UPDATE shopping_lists SET to_delete = 1 WHERE virtualnode_id = ? AND replicated = 0 " +
+                            "AND NOT " + tokenRange(fromToken, toToken) + " AND hinted_handoff IS NULL";
+                    try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                        pstmt.setString(1, virtualNode);
+                        pstmt.setLong(2, fromToken);
+                        pstmt.setLong(3, toToken);
+                        pstmt.executeUpdate();
+                    }
+                }
+            } catch (SQLException e) {
+                System.out.println("Error marking keys to delete: " + e.getMessage());
+            }
+        }
+
+        // Condition on ring_token for the tokens after the first parameter and up to the second one. A node that is
+        // alone on the ring has the same token at both ends and keeps every token.
+        private static String tokenRange(long fromToken, long toToken) {
+            return fromToken < toToken ? "(ring_token > ? AND ring_token <= ?)" : "(ring_token > ? OR ring_token <= ?)";
+        }
     
         private static String getAllKeys(int id,String replicationLevel) {
             System.out.println("Getting all keys...");
     
             // get the list name and products and send it to the client
-            String url = "jdbc:sqlite:database/server/server_" + id + ".db";
-    
             StringBuilder keys = new StringBuilder();
     
-            try (Connection conn = DriverManager.getConnection(url)) {
+            try (Connection conn = database.getConnection()) {
                 if (conn != null) {
-                    String sql = "SELECT list_uuid, list_name, list_content FROM shopping_lists WHERE replicated = ?";
+                    String sql = "SELECT list_uuid, list_name, list_content FROM shopping_lists WHERE replicated = ? " +
+                            "AND hinted_handoff IS NULL";
                     try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
                         pstmt.setString(1, replicationLevel);
                         ResultSet rs = pstmt.executeQuery();
@@ -1017,19 +1638,17 @@
             return keys.toString();
         }
     
-        private static void handleDeleteKeysMessage(int id,ZMQ.Socket socket) {
+        private static void handleDeleteKeysMessage(int id,ZMsg client) {
             deleteKeys(id);
             String response = "Keys deleted in server " + id;
-            socket.send(response.getBytes(ZMQ.CHARSET));
+            reply(client, response);
         }
     
         private static void deleteKeys(int id) {
             System.out.println("Deleting keys...");
     
             // get the list name and products and send it to the client
-            String url = "jdbc:sqlite:database/server/server_" + id + ".db";
-    
-            try (Connection conn = DriverManager.getConnection(url)) {
+            try (Connection conn = database.getConnection()) {
                 if (conn != null) {
                     String sql = "DELETE FROM shopping_lists WHERE to_delete = 1";
                     try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -1041,10 +1660,10 @@
             }
         }
     
-        private static void handleReplicateKeysMessage(int id,ZMQ.Socket socket) {
+        private static void handleReplicateKeysMessage(int id,ZMsg client) {
             replicateKeys(id);
             String response = "Keys replicated in server " + id;
-            socket.send(response.getBytes(ZMQ.CHARSET));
+            reply(client, response);
         }
     
         private static void replicateKeys(int id) {
@@ -1071,10 +1690,9 @@
             System.out.println("Getting list content...");
     
             // get the list name and products and send it to the client
-            String url = "jdbc:sqlite:database/server/server_" + id + ".db";
             String listContent = null;
     
-            try (Connection conn = DriverManager.getConnection(url)) {
+            try (Connection conn = database.getConnection()) {
                 if (conn != null) {
                     String sql = "SELECT list_content FROM shopping_lists WHERE list_uuid = ? AND virtualnode_id = ?";
                     try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -1093,80 +1711,115 @@
             return listContent;
         }
     
-        //search hinted handoff not null and send them to correct server
+        // Hands every replica kept for another node to the node that keeps that level of the list in the current
+        // ring, once that node is up, and drops this server's copy. A copy that changed while it was handed off is
+        // kept for the next round.
         private static void searchHintedHandoff(int id) {
-            System.out.println("Searching hinted handoff...");
-    
-            // get the list name and products and send it to the client
-            String url = "jdbc:sqlite:database/server/server_" + id + ".db";
-            List<Pair<String,String>> listsUUID = new ArrayList<>();
+            HashRing ring = hashRing.get();
+            if (ring == null) {
+                return;
+            }
 
-            try (Connection conn = DriverManager.getConnection(url)) {
+            List<HintedReplica> replicas = new ArrayList<>();
+            try (Connection conn = database.getConnection()) {
                 if (conn != null) {
-                    String sql = "SELECT list_uuid, list_name, list_content, replicated, hinted_handoff FROM " +
-                            "shopping_lists WHERE hinted_handoff IS NOT NULL";
+                    String sql = "SELECT id, virtualnode_id, list_uuid, list_name, list_content, replicated FROM " +
+                            "shopping_lists WHERE hinted_handoff IS NOT NULL AND to_delete = 0";
                     try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
                         ResultSet rs = pstmt.executeQuery();
                         while (rs.next()) {
-                            String listUUID = rs.getString("list_uuid");
-                            String listName = rs.getString("list_name");
-                            String listContent = rs.getString("list_content");
-                            String replicationLevel = rs.getString("replicated");
-                            String node = rs.getString("hinted_handoff");
-
-                            int port = Integer.parseInt(node.substring(1, 2)) + SERVER_BASE_PORT;
-                            int virtualNode = Integer.parseInt(node.substring(3));
-                            Message message = new Message();
-                            message.setMethod("updateList");
-                            message.setListUUID(listUUID);
-                            message.setListname(listName);
-                            message.setListcontent(listContent);
-                            message.setVirtualnode(String.valueOf(virtualNode));
-                            message.setReplicationLevel(replicationLevel);
-
-                            try (ZContext context = new ZContext()) {
-                                ZMQ.Socket socket = context.createSocket(SocketType.REQ);
-                                socket.connect("tcp://localhost:" + port);
-                                socket.setReceiveTimeOut(1000);
-                                System.out.println("connected to port " + port + "...");
-                                socket.send(message.toJson().getBytes(ZMQ.CHARSET));
-                                System.out.println("Sent request to server: " + message.toJson());
-                                byte[] response = socket.recv();
-                                if (response == null) {
-                                    System.out.println("No response from server " + port);
-                                    continue;
-                                }
-                                String responseMessage = new String(response, ZMQ.CHARSET);
-                                System.out.println("Received response from server: " + responseMessage);
-                                // add list to lists to delete
-                                listsUUID.add(new Pair<>(listUUID,String.valueOf(virtualNode)));
-                            }
+                            replicas.add(new HintedReplica(rs.getLong("id"), rs.getString("virtualnode_id"),
+                                    rs.getString("list_uuid"), rs.getString("list_name"),
+                                    rs.getString("list_content"), rs.getInt("replicated")));
                         }
                     }
                 }
             } catch (SQLException e) {
                 System.out.println("Error searching hinted handoff: " + e.getMessage());
+                return;
             }
-    
-            //delete lists of listsUUID
-            for (Pair<String,String> pair : listsUUID) {
-                markListToDelete(id,pair.right(),pair.left());
-                System.out.println("List " + pair.left() + " marked to delete in server " + id);
+
+            for (HintedReplica replica : replicas) {
+                String responsibleNode = ring.getResponsibleNode(replica.listUUID());
+                List<String> preferenceList = ring.getPreferenceList(responsibleNode);
+                if (replica.level() > preferenceList.size()) {
+                    continue;
+                }
+                String node = replica.level() == 0 ? responsibleNode : preferenceList.get(replica.level() - 1);
+                int serverId = HashRing.serverId(node);
+                String virtualNode = HashRing.virtualNode(node);
+
+                if (serverId == id && virtualNode.equals(replica.virtualNode())) {
+                    // the ring changed and this node keeps that level itself now
+                    clearHintedHandoff(replica.rowId());
+                    continue;
+                }
+                if (serverId == id) {
+                    replicateList(id, virtualNode, replica.listUUID(), replica.listName(), replica.listContent(),
+                            String.valueOf(replica.level()), "");
+                } else {
+                    if (!failureDetector.isAvailable(serverId)) {
+                        continue;
+                    }
+                    Message message = new Message();
+                    message.setMethod("replicateList");
+                    message.setListUUID(replica.listUUID());
+                    message.setListname(replica.listName());
+                    message.setListcontent(replica.listContent());
+                    message.setVirtualnode(virtualNode);
+                    message.setReplicationLevel(String.valueOf(replica.level()));
+
+                    String response = serverConnections.request(ring.getEndpoint(serverId), message.toJson(),
+                            REPLICATION_TIMEOUT);
+                    if (response == null || isBusyReply(response)) {
+                        // kept for the next handoff
+                        continue;
+                    }
+                }
+                System.out.println("Handed off list " + replica.listUUID() + " to " + node);
+                deleteHintedReplica(replica);
             }
-    
-            deleteKeys(id);
         }
-    
-        record Pair<L, R>(L left, R right) {
+
+        private record HintedReplica(long rowId, String virtualNode, String listUUID, String listName,
+                                     String listContent, int level) {
+        }
+
+        private static void clearHintedHandoff(long rowId) {
+            try (Connection conn = database.getConnection()) {
+                if (conn != null) {
+                    String sql = "UPDATE shopping_lists SET hinted_handoff = NULL WHERE id = ?";
+                    try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                        pstmt.setLong(1, rowId);
+                        pstmt.executeUpdate();
+                    }
+                }
+            } catch (SQLException e) {
+                System.out.println("Error clearing hinted handoff: " + e.getMessage());
+            }
+        }
+
+        private static void deleteHintedReplica(HintedReplica replica) {
+            try (Connection conn = database.getConnection()) {
+                if (conn != null) {
+                    String sql = "DELETE FROM shopping_lists WHERE id = ? AND list_content = ?";
+                    try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                        pstmt.setLong(1, replica.rowId());
+                        pstmt.setString(2, replica.listContent());
+                        pstmt.executeUpdate();
+                    }
+                }
+            } catch (SQLException e) {
+                System.out.println("Error deleting hinted handoff: " + e.getMessage());
+            }
         }
 
         private static boolean listExists(int serverId, String listUUID,String virtualNode) {
             System.out.println("Checking if list exists...");
 
-            String url = "jdbc:sqlite:database/server/server_" + serverId + ".db";
             boolean exists = false;
 
-            try (Connection conn = DriverManager.getConnection(url)) {
+            try (Connection conn = database.getConnection()) {
                 if (conn != null) {
                     String sql = "SELECT list_uuid FROM shopping_lists WHERE list_uuid = ? AND virtualnode_id = ?";
                     try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -0,0 +1,165 @@
+package sdle.server.utils;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// A few long-lived connections to the server's SQLite database, lent to the handler threads.
+// Opening a connection cost more than the queries run on it, so the connections are opened once and set up for
+// WAL journaling. The connections handed out are wrappers: closing one gives it back to the pool, and the
+// statements it prepares are kept for the next time the same SQL is prepared on it, closing one only resets it.
+public class ConnectionPool {
+
+    private static final List<String> PRAGMAS = List.of(
+            // readers and the writer do not block each other
+            "PRAGMA journal_mode=WAL",
+            // with WAL a crash can only lose the last commits, it cannot corrupt the database
+            "PRAGMA synchronous=NORMAL",
+            // 8 MB of page cache per connection
+            "PRAGMA cache_size=-8192",
+            "PRAGMA temp_store=MEMORY",
+            // wait for another connection's write to finish instead of failing
+            "PRAGMA busy_timeout=5000");
+
+    private final BlockingQueue<Connection> idle;
+
+    private final List<Connection> connections = new ArrayList<>();
+
+    public ConnectionPool(String url, int size) throws SQLException {
+        idle = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            Connection connection = DriverManager.getConnection(url);
+            try (Statement statement = connection.createStatement()) {
+                for (String pragma : PRAGMAS) {
+                    statement.execute(pragma);
+                }
+            }
+            connections.add(connection);
+            idle.add(new PooledConnection(connection).proxy);
+        }
+    }
+
+    // Waits for a free connection, which goes back to the pool when it is closed
+    public Connection getConnection() throws SQLException {
+        try {
+            Connection connection = idle.take();
+            ((PooledConnection) Proxy.getInvocationHandler(connection)).lent = true;
+            return connection;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+    }
+
+    public void close() {
+        for (Connection connection : connections) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                System.out.println("Error closing database connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private class PooledConnection implements InvocationHandler {
+        private final Connection connection;
+
+        private final Connection proxy;
+
+        // SQL -> statement prepared on this connection, only used by the thread that borrowed it
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private volatile boolean lent = false;
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close" -> {
+                    // closing twice must not put the connection in the pool twice
+                    if (lent) {
+                        lent = false;
+                        idle.add(proxy);
+                    }
+                    return null;
+                }
+                case "isClosed" -> {
+                    return !lent;
+                }
+                case "prepareStatement" -> {
+                    if (args.length == 1) {
+                        String sql = (String) args[0];
+                        PreparedStatement statement = statements.get(sql);
+                        if (statement == null) {
+                            statement = new CachedStatement(connection.prepareStatement(sql)).proxy;
+                            statements.put(sql, statement);
+                        }
+                        return statement;
+                    }
+                }
+            }
+            return ConnectionPool.invoke(connection, method, args);
+        }
+    }
+
+    private static class CachedStatement implements InvocationHandler {
+        private final PreparedStatement statement;
+
+        private final PreparedStatement proxy;
+
+        // the result set of the last query, closed with the statement so the connection does not keep reading
+        // an old snapshot of the database
+        private ResultSet resultSet;
+
+        CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+            this.proxy = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close" -> {
+                    if (resultSet != null) {
+                        resultSet.close();
+                        resultSet = null;
+                    }
+                    statement.clearParameters();
+                    return null;
+                }
+                case "executeQuery" -> {
+                    resultSet = (ResultSet) ConnectionPool.invoke(statement, method, args);
+                    return resultSet;
+                }
+            }
+            return ConnectionPool.invoke(statement, method, args);
+        }
+    }
+}
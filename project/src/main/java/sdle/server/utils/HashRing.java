@@ -0,0 +1,349 @@
+package sdle.server.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// Consistent hash ring shared by the routers and the servers.
+// A ring never changes once built: joins and leaves build a new ring with the next epoch, and the lookup tables
+// (sorted tokens, node positions and the preference list of every virtual node) are computed once per ring.
+// Rings are published by swapping a reference, so a request routes against exactly one epoch without locking.
+// Tokens are full 64-bit hashes compared as signed longs.
+// The ring also holds the address registry of its servers, so whoever gets a ring knows where every node lives,
+// and the cluster's N, R and W, so the routers, servers and smart clients all replicate and read with the same ones.
+// Virtual nodes are named "S<serverId>V<virtualNode>", both numbers of any length.
+public class HashRing {
+
+    public static final String DEFAULT_HOST = "localhost";
+
+    // servers that did not register an address listen on this port plus their id
+    public static final int SERVER_BASE_PORT = 5000;
+
+    // servers publish the lists that changed on their port plus this
+    public static final int PUBLISH_PORT_OFFSET = 2000;
+
+    // successors kept for every virtual node, one per server, the servers walk up to this many nodes looking for
+    // replicas
+    public static final int PREFERENCE_LIST_SIZE = 10;
+
+    private final RingHashFunction hashFunction;
+
+    private final long epoch;
+
+    private final Levels levels;
+
+    // server id -> "host:port"
+    private final Map<Integer, String> addresses;
+
+    private final String[] nodes;
+
+    private final long[] tokens;
+
+    private final Map<String, Integer> positions;
+
+    private final List<List<String>> preferenceLists;
+
+    private HashRing(RingHashFunction hashFunction, long epoch, Levels levels, Map<Integer, String> addresses,
+                     List<Entry> entries) {
+        this.hashFunction = hashFunction;
+        this.epoch = epoch;
+        this.levels = levels;
+        this.addresses = Collections.unmodifiableMap(new TreeMap<>(addresses));
+        entries.sort(Comparator.comparingLong(Entry::token).thenComparing(Entry::node));
+
+        int size = entries.size();
+        nodes = new String[size];
+        tokens = new long[size];
+        positions = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            nodes[i] = entries.get(i).node();
+            tokens[i] = entries.get(i).token();
+            positions.put(nodes[i], i);
+        }
+
+        // the nodes of a server it already has, or that the node itself belongs to, are skipped, so that the
+        // replicas of a list are on distinct servers
+        List<List<String>> lists = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            List<String> successors = new ArrayList<>();
+            Set<Integer> servers = new HashSet<>();
+            servers.add(serverId(nodes[i]));
+            for (int j = 1; j < size && successors.size() < PREFERENCE_LIST_SIZE; j++) {
+                String node = nodes[(i + j) % size];
+                if (servers.add(serverId(node))) {
+                    successors.add(node);
+                }
+            }
+            lists.add(Collections.unmodifiableList(successors));
+        }
+        preferenceLists = lists;
+    }
+
+    public static HashRing create(int numberOfServers, int virtualNodesPerServer, RingHashFunction hashFunction,
+                                  Levels levels) {
+        List<Entry> entries = new ArrayList<>();
+        Map<Integer, String> addresses = new HashMap<>();
+        for (int i = 1; i <= numberOfServers; i++) {
+            addVirtualNodes(entries, hashFunction, i, virtualNodesPerServer);
+            addresses.put(i, defaultAddress(i));
+        }
+        return new HashRing(hashFunction, 1, levels, addresses, entries);
+    }
+
+    // Parses the "hashFunction|epoch|N,R,W|id=host:port,id=host:port|node,token:node,token:" format produced by
+    // toString, rings without the levels have the default ones
+    public static HashRing fromString(String hashRingString) {
+        RingHashFunction hashFunction = RingHashFunction.forName(RingHashFunction.DEFAULT);
+        long epoch = 0;
+        Levels levels = Levels.DEFAULT;
+        Map<Integer, String> addresses = new HashMap<>();
+        String[] parts = hashRingString.split("\\|", -1);
+        if (parts.length > 1) {
+            hashFunction = RingHashFunction.forName(parts[0]);
+        }
+        if (parts.length > 2) {
+            epoch = Long.parseLong(parts[1]);
+        }
+        if (parts.length > 4) {
+            String[] levelParts = parts[2].split(",");
+            levels = new Levels(Integer.parseInt(levelParts[0]), Integer.parseInt(levelParts[1]),
+                    Integer.parseInt(levelParts[2]));
+        }
+        if (parts.length > 3) {
+            for (String address : parts[parts.length - 2].split(",")) {
+                if (address.isEmpty()) {
+                    continue;
+                }
+                String[] pair = address.split("=", 2);
+                addresses.put(Integer.parseInt(pair[0]), pair[1]);
+            }
+        }
+        hashRingString = parts[parts.length - 1];
+
+        List<Entry> entries = new ArrayList<>();
+        for (String hashRingPart : hashRingString.split(":")) {
+            if (hashRingPart.isEmpty()) {
+                continue;
+            }
+            String[] pair = hashRingPart.split(",");
+            entries.add(new Entry(pair[0], Long.parseLong(pair[1])));
+            addresses.putIfAbsent(serverId(pair[0]), defaultAddress(serverId(pair[0])));
+        }
+        return new HashRing(hashFunction, epoch, levels, addresses, entries);
+    }
+
+    // address is the "host:port" the server listens on, null for the default one
+    public HashRing withServer(int serverId, int virtualNodes, String address) {
+        List<Entry> entries = entries();
+        addVirtualNodes(entries, hashFunction, serverId, virtualNodes);
+        Map<Integer, String> newAddresses = new HashMap<>(addresses);
+        newAddresses.put(serverId, address == null ? defaultAddress(serverId) : address);
+        return new HashRing(hashFunction, epoch + 1, levels, newAddresses, entries);
+    }
+
+    public HashRing withoutServer(int serverId) {
+        List<Entry> entries = entries();
+        entries.removeIf(entry -> serverId(entry.node()) == serverId);
+        Map<Integer, String> newAddresses = new HashMap<>(addresses);
+        newAddresses.remove(serverId);
+        return new HashRing(hashFunction, epoch + 1, levels, newAddresses, entries);
+    }
+
+    // Registers a new address for a server already in the ring
+    public HashRing withAddress(int serverId, String address) {
+        Map<Integer, String> newAddresses = new HashMap<>(addresses);
+        newAddresses.put(serverId, address);
+        return new HashRing(hashFunction, epoch + 1, levels, newAddresses, entries());
+    }
+
+    public static int serverId(String node) {
+        return Integer.parseInt(node.substring(1, node.indexOf('V')));
+    }
+
+    public static String virtualNode(String node) {
+        return node.substring(node.indexOf('V') + 1);
+    }
+
+    public static String defaultAddress(int serverId) {
+        return DEFAULT_HOST + ":" + (SERVER_BASE_PORT + serverId);
+    }
+
+    // "host:port" of the server, the default address if it never registered one
+    public String getAddress(int serverId) {
+        return addresses.getOrDefault(serverId, defaultAddress(serverId));
+    }
+
+    public String getEndpoint(int serverId) {
+        return "tcp://" + getAddress(serverId);
+    }
+
+    public String getPublishEndpoint(int serverId) {
+        return "tcp://" + publishAddress(getAddress(serverId));
+    }
+
+    // "host:port" where the server listening on the given address publishes list updates
+    public static String publishAddress(String address) {
+        int separator = address.lastIndexOf(':');
+        int port = Integer.parseInt(address.substring(separator + 1));
+        return address.substring(0, separator) + ":" + (port + PUBLISH_PORT_OFFSET);
+    }
+
+    // Returns the newer of the two rings, for publishing rings that may arrive out of order. Two routers changing
+    // the ring at once can build different rings of the same epoch, every node then keeps the same one of them and
+    // the router whose ring is dropped applies its change again on top of it.
+    public static HashRing newest(HashRing current, HashRing ring) {
+        if (current == null || ring.epoch > current.epoch) {
+            return ring;
+        }
+        if (ring.epoch == current.epoch && ring.toString().compareTo(current.toString()) > 0) {
+            return ring;
+        }
+        return current;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    // the cluster's N, R and W, what a request that does not ask for its own levels gets
+    public int getReplicationFactor() {
+        return levels.replicationFactor();
+    }
+
+    public int getReadQuorum() {
+        return levels.readQuorum();
+    }
+
+    public int getWriteQuorum() {
+        return levels.writeQuorum();
+    }
+
+    public long token(String key) {
+        return hashFunction.hash(key);
+    }
+
+    // Token of the node, it is responsible for the keys from the previous node's token, excluded, up to this one
+    public long getToken(String node) {
+        return tokens[position(node)];
+    }
+
+    public String getResponsibleNode(String key) {
+        return nodes[positionOf(token(key))];
+    }
+
+    public String getNextNode(String node) {
+        return nodes[(position(node) + 1) % nodes.length];
+    }
+
+    public String getPreviousNode(String node) {
+        return nodes[(position(node) + nodes.length - 1) % nodes.length];
+    }
+
+    // The nodes of other servers that follow the given node on the ring, the first one of each server, in ring order
+    public List<String> getPreferenceList(String node) {
+        return preferenceLists.get(position(node));
+    }
+
+    // Virtual nodes owned by the server, in virtual node order
+    public List<String> getVirtualNodes(int serverId) {
+        List<String> virtualNodes = new ArrayList<>();
+        for (String node : nodes) {
+            if (serverId(node) == serverId) {
+                virtualNodes.add(node);
+            }
+        }
+        virtualNodes.sort(Comparator.comparingInt(node -> Integer.parseInt(virtualNode(node))));
+        return virtualNodes;
+    }
+
+    // Ids of the servers that own at least one virtual node, in ascending order
+    public Set<Integer> getServerIds() {
+        Set<Integer> serverIds = new TreeSet<>();
+        for (String node : nodes) {
+            serverIds.add(serverId(node));
+        }
+        return serverIds;
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(hashFunction.name()).append("|").append(epoch).append("|")
+                .append(levels.replicationFactor()).append(",").append(levels.readQuorum()).append(",")
+                .append(levels.writeQuorum()).append("|");
+        for (Map.Entry<Integer, String> address : addresses.entrySet()) {
+            sb.append(address.getKey()).append("=").append(address.getValue()).append(",");
+        }
+        sb.append("|");
+        for (int i = 0; i < nodes.length; i++) {
+            sb.append(nodes[i]).append(",").append(tokens[i]).append(":");
+        }
+        return sb.toString();
+    }
+
+    // Index of the first token at or after the given one, wrapping around to the start of the ring
+    private int positionOf(long token) {
+        int low = 0;
+        int high = tokens.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (tokens[middle] < token) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low == tokens.length ? 0 : low;
+    }
+
+    private int position(String node) {
+        Integer position = positions.get(node);
+        if (position == null) {
+            throw new IllegalArgumentException("Node " + node + " is not in the hash ring");
+        }
+        return position;
+    }
+
+    private List<Entry> entries() {
+        List<Entry> entries = new ArrayList<>(nodes.length);
+        for (int i = 0; i < nodes.length; i++) {
+            entries.add(new Entry(nodes[i], tokens[i]));
+        }
+        return entries;
+    }
+
+    private static void addVirtualNodes(List<Entry> entries, RingHashFunction hashFunction, int serverId,
+                                        int virtualNodes) {
+        for (int j = 1; j <= virtualNodes; j++) {
+            String serverNode = "S" + serverId + "V" + j;
+            entries.add(new Entry(serverNode, hashFunction.hash(serverNode)));
+        }
+    }
+
+    private record Entry(String node, long token) {
+    }
+
+    // N, R and W of the cluster, R and W are at most N
+    public record Levels(int replicationFactor, int readQuorum, int writeQuorum) {
+
+        public static final Levels DEFAULT = new Levels(3, 2, 1);
+
+        public Levels {
+            if (replicationFactor < 1 || readQuorum < 1 || writeQuorum < 1) {
+                throw new IllegalArgumentException("N, R and W must be at least 1");
+            }
+            readQuorum = Math.min(readQuorum, replicationFactor);
+            writeQuorum = Math.min(writeQuorum, replicationFactor);
+        }
+    }
+}
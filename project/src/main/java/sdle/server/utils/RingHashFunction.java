@@ -0,0 +1,21 @@
+package sdle.server.utils;
+
+// Hash used to place virtual nodes and lists on the ring.
+// Tokens use the whole 64-bit space, and the name of the function travels with the ring (see HashRing.toString)
+// so the routers and every server always hash keys the same way.
+public interface RingHashFunction {
+
+    String DEFAULT = Murmur3RingHash.NAME;
+
+    String name();
+
+    long hash(String key);
+
+    static RingHashFunction forName(String name) {
+        return switch (name) {
+            case Murmur3RingHash.NAME -> Murmur3RingHash.INSTANCE;
+            case XxHash64RingHash.NAME -> XxHash64RingHash.INSTANCE;
+            default -> throw new IllegalArgumentException("Unknown ring hash function: " + name);
+        };
+    }
+}